@@ -4,6 +4,7 @@
 import java.io.*;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
@@ -20,6 +21,12 @@ import org.apache.lucene.util.BytesRef;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Once the indexes are open, several threads may use Idx at once
+ *  (e.g., to evaluate queries in parallel), provided that the current
+ *  index doesn't change.  Lucene's IndexReader is thread-safe, and the
+ *  data that Idx loads on demand (e.g., field lengths) is published
+ *  safely.
  *  </p>
  */
 public class Idx {
@@ -35,6 +42,58 @@ public class Idx {
     new HashMap<String,IndexReader> ();
   private static String externalIdField = new String ("externalId");
 
+  /**
+   *  The docid to external id table of each open index, and of the
+   *  current index.  The table is null if the index is too large to
+   *  have one, in which case external ids are read from stored fields.
+   */
+  private static HashMap<String,IdxExternalIds> openExternalIds =
+    new HashMap<String,IdxExternalIds> ();
+  private static IdxExternalIds externalIds = null;
+
+  /**
+   *  The field length columns of each open index, and of the current
+   *  index.  A column is loaded from the field's norms the first time
+   *  that the field's lengths are requested.
+   */
+  private static HashMap<String,Map<String,int[]>> openFieldLengths =
+    new HashMap<String,Map<String,int[]>> ();
+  private static Map<String,int[]> fieldLengths = null;
+
+  /**
+   *  The corpus statistics of each open index, and of the current
+   *  index.
+   */
+  private static HashMap<String,IdxStats> openStats =
+    new HashMap<String,IdxStats> ();
+  private static IdxStats stats = null;
+
+  /**
+   *  The attribute columns of each open index, and of the current
+   *  index.  The columns are loaded the first time that a typed
+   *  attribute is requested.
+   */
+  private static HashMap<String,IdxAttributes> openAttributes =
+    new HashMap<String,IdxAttributes> ();
+  private static IdxAttributes attributes = null;
+
+  /**
+   *  The phrase index of each open index, and of the current index;
+   *  null if the index doesn't have one (see IdxPhrases).
+   */
+  private static HashMap<String,IdxPhrases> openPhrases =
+    new HashMap<String,IdxPhrases> ();
+  private static IdxPhrases phrases = null;
+
+  /**
+   *  The impact index of each open index, and of the current index;
+   *  null if the index doesn't have one (see IdxImpacts).
+   */
+  private static HashMap<String,IdxImpacts> openImpacts =
+    new HashMap<String,IdxImpacts> ();
+  private static IdxImpacts impacts = null;
+  private static String currentIndexPath = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -51,6 +110,116 @@ public class Idx {
     return doc.get (attributeName);
   }
 
+  /**
+   *  Get the attribute columns of the current index, loading them if
+   *  necessary.
+   *  @return the attribute columns, or null if the index is too large
+   *  to have them.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static synchronized IdxAttributes getAttributes ()
+    throws IOException {
+
+    if ((Idx.attributes == null) &&
+	(! openAttributes.containsKey (Idx.currentIndexPath))) {
+      Idx.attributes =
+	IdxAttributes.open (Idx.currentIndexPath, Idx.INDEXREADER);
+      openAttributes.put (Idx.currentIndexPath, Idx.attributes);
+    }
+
+    return Idx.attributes;
+  }
+
+  /**
+   *  Get the value of a numeric attribute of type float (e.g.,
+   *  PageRank or spamScore) from the attribute columns.  This
+   *  doesn't read the stored document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value, or NaN if the document doesn't
+   *  have the attribute.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException There is no such float attribute.
+   */
+  public static float getFloatAttribute (String attributeName, int docid)
+    throws IOException {
+
+    IdxAttributes columns = getAttributes ();
+
+    if (columns != null) {
+      return columns.getFloat (attributeName, docid);
+    }
+
+    try {
+      return Float.parseFloat (getAttribute (attributeName, docid));
+    } catch (NullPointerException | NumberFormatException ex) {
+      return Float.NaN;
+    }
+  }
+
+  /**
+   *  Get the value of a numeric attribute of type double (e.g., date)
+   *  from the attribute columns.  This doesn't read the stored
+   *  document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value, or NaN if the document doesn't
+   *  have the attribute.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException There is no such double attribute.
+   */
+  public static double getDoubleAttribute (String attributeName, int docid)
+    throws IOException {
+
+    IdxAttributes columns = getAttributes ();
+
+    if (columns != null) {
+      return columns.getDouble (attributeName, docid);
+    }
+
+    try {
+      return Double.parseDouble (getAttribute (attributeName, docid));
+    } catch (NullPointerException | NumberFormatException ex) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   *  Get the value of an attribute derived from rawUrl (rawUrl:depth,
+   *  the number of '/' characters, and rawUrl:wikipedia, 1 for
+   *  wikipedia.org urls and 0 for others) from the attribute columns.
+   *  This doesn't read the stored document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value, or IdxAttributes.MISSING if the
+   *  document doesn't have the attribute.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException There is no such integer attribute.
+   */
+  public static long getLongAttribute (String attributeName, int docid)
+    throws IOException {
+
+    IdxAttributes columns = getAttributes ();
+
+    if (columns != null) {
+      return columns.getLong (attributeName, docid);
+    }
+
+    if (attributeName.startsWith ("rawUrl:")) {
+      String url = getAttribute ("rawUrl", docid);
+
+      if (url == null)
+	return IdxAttributes.MISSING;
+      else if (attributeName.equals ("rawUrl:depth"))
+	return url.length () - url.replace ("/", "").length ();
+      else
+	return url.contains ("wikipedia.org") ? 1 : 0;
+    }
+
+    throw new IllegalArgumentException
+      ("No integer attribute named " + attributeName);
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -59,7 +228,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.stats.getDocCount (fieldName);
   }
   
   
@@ -73,7 +242,7 @@ public class Idx {
    */
   public static long getDocFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.stats.getDocFreq (fieldName, term);
   }
 
 
@@ -85,11 +254,38 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int docid) throws IOException {
+
+    if (Idx.externalIds != null) {
+      return Idx.externalIds.get (docid);
+    }
+
     Document doc = Idx.INDEXREADER.document(docid);
     String eid = doc.get(externalIdField);
     return eid;
   }
 
+  /**
+   *  Get the external document ids for several documents specified
+   *  by internal document ids.  Use this instead of calling
+   *  getExternalDocid in a loop.
+   *  @param docids The internal document ids.
+   *  @return the external document ids, in the same order as docids
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String[] getExternalDocids (int[] docids) throws IOException {
+
+    if (Idx.externalIds != null) {
+      return Idx.externalIds.get (docids);
+    }
+
+    String[] eids = new String [docids.length];
+
+    for (int i = 0; i < docids.length; i++)
+      eids [i] = getExternalDocid (docids [i]);
+
+    return eids;
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -99,20 +295,77 @@ public class Idx {
    */
   public static long getFieldLength (String fieldName, int docid)
     throws IOException {
+    return getFieldLengths (fieldName) [docid];
+  }
+
+  /**
+   *  Get the lengths of the specified field in every document,
+   *  indexed by internal docid.  The column is read from the index
+   *  the first time that it is requested, so that each later lookup
+   *  is just an array access.  Callers must not modify the array.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the length of the field in each document, including
+   *  stopword positions.  Documents without the field have length 0.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int[] getFieldLengths (String fieldName)
+    throws IOException {
+
+    int[] lengths = Idx.fieldLengths.get (fieldName);
+
+    if (lengths == null) {
+      lengths = new int [Idx.INDEXREADER.maxDoc ()];
+
+      for (LeafReaderContext leafContext : Idx.INDEXREADER.leaves ()) {
+	NumericDocValues normValues =
+	  leafContext.reader ().getNormValues (fieldName);
+
+	if (normValues == null)
+	  continue;
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues normValues = leafReader.getNormValues (fieldName);
-    long fieldLength = 0;
-	    
-    if (normValues != null) {
-      if (normValues.advanceExact (leafDocid)) {
-	fieldLength = normValues.longValue();
+	int leafDocid;
+
+	while ((leafDocid = normValues.nextDoc ()) !=
+	       DocIdSetIterator.NO_MORE_DOCS) {
+	  lengths [leafContext.docBase + leafDocid] =
+	    (int) normValues.longValue ();
+	}
       }
+
+      //  If another thread loaded the column first, use its copy.
+
+      int[] loaded = Idx.fieldLengths.putIfAbsent (fieldName, lengths);
+
+      if (loaded != null)
+	lengths = loaded;
     }
-	    
-    return fieldLength;
+
+    return lengths;
+  }
+
+  /**
+   *  Get the impact index of the current index.
+   *  @return the impact index, or null if the index doesn't have one.
+   */
+  public static IdxImpacts getImpacts () {
+    return Idx.impacts;
+  }
+
+  /**
+   *  Get the phrase index of the current index.
+   *  @return the phrase index, or null if the index doesn't have one.
+   */
+  public static IdxPhrases getPhrases () {
+    return Idx.phrases;
+  }
+
+  /**
+   *  Get the path of the current index.
+   *  @return The directory of the current index, or null if no index
+   *  is open.
+   */
+  public static String getIndexPath () {
+    return Idx.currentIndexPath;
   }
 
   /**
@@ -126,6 +379,15 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.externalIds != null) {
+      int docid = Idx.externalIds.find (externalId);
+
+      if (docid < 0)
+	throw new Exception ("External id " + externalId + " not found.");
+
+      return docid;
+    }
+
     LeafReaderContext leafContext =
       getLeafReaderContext (Idx.INDEXREADER, externalId);
 
@@ -144,6 +406,37 @@ public class Idx {
     throw new Exception ("External id should exist, but isn't found.");
   }
 
+  /**
+   * Get the internal document ids for several documents specified by
+   * their external ids.  Use this instead of calling getInternalDocid
+   * in a loop.
+   * @param externalIds The external docids in the Lucene index.
+   * @return the internal docids, in the iteration order of externalIds.
+   * The docid of an external id that doesn't exist is -1.
+   * @throws Exception Could not read the internal document ids from the index.
+   */
+  public static int[] getInternalDocids (Collection<String> externalIds)
+    throws Exception {
+
+    if (Idx.externalIds != null) {
+      return Idx.externalIds.resolve (externalIds);
+    }
+
+    int[] docids = new int [externalIds.size ()];
+    int i = 0;
+
+    for (String externalId : externalIds) {
+      try {
+	docids [i] = getInternalDocid (externalId);
+      } catch (Exception ex) {
+	docids [i] = -1;
+      }
+      i ++;
+    }
+
+    return docids;
+  }
+
   /**
    *  Get the context of the LeafReader that contains the specified document.
    *  @param reader An IndexReader (probably a CompositeReader)
@@ -169,34 +462,24 @@ public class Idx {
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An internal document id
-   *  @return the LeafReaderContext that contains the document, or null
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, long docid) {
-
-    LeafReader leafReader = null;
-
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      leafReader = leafContext.reader();
-      int minDocid = leafContext.docBase;
-      int maxDocid = leafContext.docBase + leafReader.numDocs();
-      if ((docid >= minDocid) && (docid < maxDocid)) {
-	return leafContext;
-      };
-    };
-
-    return null;
+  public static long getNumDocs () throws IOException {
+    return Idx.stats.getNumDocs ();
   }
 
   /**
-   *  Get the total number of documents in the corpus.
-   *  @return The total number of documents.
+   *  Get the length of the shortest non-empty instance of the
+   *  specified field in the corpus.  Score upper bounds use it.
+   *  @param fieldName The field name.
+   *  @return The shortest field length, or 0 if the field is empty.
    *  @throws IOException Error accessing the Lucene index.
    */
-  public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+  public static int getMinFieldLength (String fieldName)
+    throws IOException {
+    return Idx.stats.getMinFieldLength (fieldName);
   }
 
   /**
@@ -209,7 +492,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.stats.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -224,7 +507,23 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.stats.getTotalTermFreq (fieldName, term);
+  }
+
+  /**
+   *  Get the document frequency (df) and collection term frequency
+   *  (ctf) of several terms in a field.  The terms are resolved in
+   *  one pass over the term dictionary, which is much faster than
+   *  calling getDocFreq and getTotalTermFreq for each term.
+   *  @param fieldName The field name.
+   *  @param terms The terms.
+   *  @return A map from each term to its statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static Map<String,IdxStats.TermStats> getTermStats (String fieldName,
+							    Collection<String> terms)
+    throws IOException {
+    return Idx.stats.getTermStats (fieldName, terms);
   }
 
 
@@ -252,10 +551,28 @@ public class Idx {
 
     openIndexReaders.put (indexPath, indexReader);
 
+    //  Load (or build) the docid to external id table.
+
+    openExternalIds.put (indexPath,
+			 IdxExternalIds.open (indexPath, indexReader,
+					      externalIdField));
+
+    openFieldLengths.put (indexPath, new ConcurrentHashMap<String,int[]> ());
+    openStats.put (indexPath, new IdxStats (indexReader));
+    openPhrases.put (indexPath, IdxPhrases.open (indexPath, indexReader));
+    openImpacts.put (indexPath, IdxImpacts.open (indexPath, indexReader));
+
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
+      Idx.externalIds = openExternalIds.get (indexPath);
+      Idx.fieldLengths = openFieldLengths.get (indexPath);
+      Idx.stats = openStats.get (indexPath);
+      Idx.attributes = null;
+      Idx.phrases = openPhrases.get (indexPath);
+      Idx.impacts = openImpacts.get (indexPath);
+      Idx.currentIndexPath = indexPath;
     }
   }
 
@@ -275,5 +592,12 @@ public class Idx {
     }
 
     Idx.INDEXREADER = indexReader;
+    Idx.externalIds = openExternalIds.get (indexPath);
+    Idx.fieldLengths = openFieldLengths.get (indexPath);
+    Idx.stats = openStats.get (indexPath);
+    Idx.attributes = openAttributes.get (indexPath);
+    Idx.phrases = openPhrases.get (indexPath);
+    Idx.impacts = openImpacts.get (indexPath);
+    Idx.currentIndexPath = indexPath;
   }
 }
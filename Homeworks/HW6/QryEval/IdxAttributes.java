@@ -0,0 +1,239 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+
+/**
+ *  A columnar store for query-independent document attributes (e.g.,
+ *  PageRank).  Idx.getAttribute reads a whole stored document and
+ *  returns a string, which is too slow to do for every document that
+ *  a learning-to-rank model scores.  IdxAttributes reads the stored
+ *  fields of every document once, parses them into primitive columns,
+ *  and saves the columns as a sidecar file (see IdxSidecar).
+ *  <p>
+ *  The columns are:
+ *  </p>
+ *  <pre>
+ *    spamScore         float   NaN if missing
+ *    PageRank          float   NaN if missing
+ *    date              double  NaN if missing
+ *    rawUrl:depth      int     the number of '/' in rawUrl, or MISSING
+ *    rawUrl:wikipedia  int     1 if rawUrl is a wikipedia.org url,
+ *                              0 if it isn't, or MISSING
+ *  </pre>
+ */
+public class IdxAttributes {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The value of an integer attribute that a document doesn't have.
+   */
+  public static final long MISSING = Long.MIN_VALUE;
+
+  /**
+   *  How MISSING is stored in an int column.  (int) MISSING is 0,
+   *  which is a real value.
+   */
+  private static final int INT_MISSING = Integer.MIN_VALUE;
+
+  private static final String FILENAME = "QryEval.attributes";
+  private static final int MAGIC = 0x51454133;		// "QEA3"
+
+  private static final String[] FLOAT_COLUMNS = { "spamScore", "PageRank" };
+  private static final String[] DOUBLE_COLUMNS = { "date" };
+  private static final String[] INT_COLUMNS =
+    { "rawUrl:depth", "rawUrl:wikipedia" };
+
+  private static final int FLOAT = 0;
+  private static final int DOUBLE = 1;
+  private static final int INT = 2;
+
+  private final ByteBuffer table;
+  private final HashMap<String,Integer> columnStart =
+    new HashMap<String,Integer> ();
+  private final HashMap<String,Integer> columnType =
+    new HashMap<String,Integer> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use an existing table.
+   *  @param table The table, positioned at byte 0.
+   */
+  private IdxAttributes (ByteBuffer table) {
+
+    this.table = table;
+
+    int maxDoc = table.getInt (0);
+    int start = 4;
+
+    for (String name : FLOAT_COLUMNS) {
+      this.columnStart.put (name, start);
+      this.columnType.put (name, FLOAT);
+      start += 4 * maxDoc;
+    }
+
+    for (String name : DOUBLE_COLUMNS) {
+      this.columnStart.put (name, start);
+      this.columnType.put (name, DOUBLE);
+      start += 8 * maxDoc;
+    }
+
+    for (String name : INT_COLUMNS) {
+      this.columnStart.put (name, start);
+      this.columnType.put (name, INT);
+      start += 4 * maxDoc;
+    }
+  }
+
+  /**
+   *  Build the columns from the stored fields of an index.
+   *  @param reader The index
+   *  @return the table, or null if it is too large to map
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ByteBuffer build (IndexReader reader) throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    long tableLength = 4L + maxDoc *
+      (4L * FLOAT_COLUMNS.length + 8L * DOUBLE_COLUMNS.length +
+       4L * INT_COLUMNS.length);
+
+    if (tableLength > Integer.MAX_VALUE - IdxSidecar.HEADER_LENGTH)
+      return null;
+
+    ByteBuffer table = ByteBuffer.allocate ((int) tableLength);
+    table.putInt (0, maxDoc);
+
+    IdxAttributes columns = new IdxAttributes (table);
+    Set<String> storedFields = new HashSet<String> ();
+
+    storedFields.addAll (Arrays.asList (FLOAT_COLUMNS));
+    storedFields.addAll (Arrays.asList (DOUBLE_COLUMNS));
+    storedFields.add ("rawUrl");
+
+    //  Read just the attribute fields of each document.
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document doc = reader.document (docid, storedFields);
+
+      for (String name : FLOAT_COLUMNS) {
+	float value = Float.NaN;
+	try {
+	  value = Float.parseFloat (doc.get (name));
+	} catch (NullPointerException | NumberFormatException ex) {
+	}
+	table.putFloat (columns.columnStart.get (name) + 4 * docid, value);
+      }
+
+      for (String name : DOUBLE_COLUMNS) {
+	double value = Double.NaN;
+	try {
+	  value = Double.parseDouble (doc.get (name));
+	} catch (NullPointerException | NumberFormatException ex) {
+	}
+	table.putDouble (columns.columnStart.get (name) + 8 * docid, value);
+      }
+
+      String url = doc.get ("rawUrl");
+      int depth = INT_MISSING;
+      int wikipedia = INT_MISSING;
+
+      if (url != null) {
+	depth = url.length () - url.replace ("/", "").length ();
+	wikipedia = url.contains ("wikipedia.org") ? 1 : 0;
+      }
+
+      table.putInt (columns.columnStart.get ("rawUrl:depth") + 4 * docid,
+		    depth);
+      table.putInt (columns.columnStart.get ("rawUrl:wikipedia") + 4 * docid,
+		    wikipedia);
+    }
+
+    return table;
+  }
+
+  /**
+   *  Get the start of a column, checking its type.
+   */
+  private int getColumn (String name, int type) {
+
+    Integer start = this.columnStart.get (name);
+
+    if ((start == null) || (this.columnType.get (name) != type)) {
+      throw new IllegalArgumentException
+	("No " + ((type == FLOAT) ? "float" : (type == DOUBLE) ? "double" : "integer") +
+	 " attribute named " + name);
+    }
+
+    return start;
+  }
+
+  /**
+   *  Get the value of a float attribute.
+   *  @param name The attribute name
+   *  @param docid An internal docid
+   *  @return the value, or NaN if the document doesn't have the attribute
+   *  @throws IllegalArgumentException There is no float attribute named name.
+   */
+  public float getFloat (String name, int docid) {
+    return this.table.getFloat (this.getColumn (name, FLOAT) + 4 * docid);
+  }
+
+  /**
+   *  Get the value of a double attribute.
+   *  @param name The attribute name
+   *  @param docid An internal docid
+   *  @return the value, or NaN if the document doesn't have the attribute
+   *  @throws IllegalArgumentException There is no double attribute named name.
+   */
+  public double getDouble (String name, int docid) {
+    return this.table.getDouble (this.getColumn (name, DOUBLE) + 8 * docid);
+  }
+
+  /**
+   *  Get the value of an integer attribute.
+   *  @param name The attribute name
+   *  @param docid An internal docid
+   *  @return the value, or MISSING if the document doesn't have the
+   *  attribute
+   *  @throws IllegalArgumentException There is no integer attribute named name.
+   */
+  public long getLong (String name, int docid) {
+
+    int value = this.table.getInt (this.getColumn (name, INT) + 4 * docid);
+    return (value == INT_MISSING) ? MISSING : value;
+  }
+
+  /**
+   *  Load the attribute columns for an index, building and saving
+   *  them first if necessary.
+   *  @param indexPath The index directory
+   *  @param reader The index
+   *  @return the columns, or null if the index is too large for them
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static IdxAttributes open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    long version = IdxSidecar.getVersion (reader);
+    ByteBuffer table = IdxSidecar.map (indexPath, FILENAME, MAGIC, version);
+
+    if ((table == null) || (table.getInt (0) != reader.maxDoc ())) {
+      table = build (reader);
+
+      if (table == null)
+	return null;
+
+      IdxSidecar.write (indexPath, FILENAME, MAGIC, version, table);
+    }
+
+    return new IdxAttributes (table);
+  }
+}
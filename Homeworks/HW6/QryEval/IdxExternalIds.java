@@ -0,0 +1,348 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntroSorter;
+
+/**
+ *  A dense table that maps internal docids to external document ids,
+ *  and external document ids back to internal docids.
+ *  Reading an external id from Lucene's stored fields decompresses a
+ *  block of stored documents, which is much too slow to do for every
+ *  document in a score list.  This table is built once per index from
+ *  the externalId field's term dictionary and stored as a sidecar file
+ *  (see IdxSidecar), so later runs just memory-map it.
+ *  <p>
+ *  The table format is:
+ *  </p>
+ *  <pre>
+ *    maxDoc:   int
+ *    count:    int, the number of documents that have external ids
+ *    offsets:  int[maxDoc+1], the start of each docid's id in data
+ *    sorted:   int[count], docids sorted by external id
+ *    data:     byte[], UTF-8 external ids in docid order
+ *  </pre>
+ *  <p>
+ *  A document that has no external id has an empty entry.  The sorted
+ *  array is binary searched to map an external id to a docid.
+ *  </p>
+ */
+public class IdxExternalIds {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String FILENAME = "QryEval.externalIds";
+  private static final int MAGIC = 0x51454932;		// "QEI2"
+
+  private final ByteBuffer table;
+  private final int maxDoc;
+  private final int count;
+  private final int sortedStart;
+  private final int dataStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use an existing table.
+   *  @param table The table, positioned at byte 0.
+   */
+  private IdxExternalIds (ByteBuffer table) {
+    this.table = table;
+    this.maxDoc = table.getInt (0);
+    this.count = table.getInt (4);
+    this.sortedStart = 8 + 4 * (this.maxDoc + 1);
+    this.dataStart = this.sortedStart + 4 * this.count;
+  }
+
+  /**
+   *  Build the table from the externalId field of an index.
+   *  @param reader The index
+   *  @param field The name of the external id field
+   *  @return the table, or null if it is too large to map
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ByteBuffer build (IndexReader reader, String field)
+    throws IOException {
+
+    //  Pass 1:  Find the length of each external id.  Walking the
+    //  term dictionary is much faster than reading stored fields.
+
+    int maxDoc = reader.maxDoc ();
+    int[] lengths = new int [maxDoc];
+    int count = 0;
+    long dataLength = 0;
+
+    for (LeafReaderContext context : reader.leaves ()) {
+      Terms terms = context.reader ().terms (field);
+
+      if (terms == null)
+	continue;
+
+      TermsEnum ithTerm = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+	postings = ithTerm.postings (postings, PostingsEnum.NONE);
+
+	while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+	  lengths [context.docBase + postings.docID ()] = term.length;
+	  dataLength += term.length;
+	  count ++;
+	}
+      }
+    }
+
+    long tableLength = 8L + 4L * (maxDoc + 1) + 4L * count + dataLength;
+
+    if (tableLength > Integer.MAX_VALUE - IdxSidecar.HEADER_LENGTH)
+      return null;
+
+    //  Pass 2:  Write the offsets, then copy each external id to
+    //  its slot.
+
+    ByteBuffer table = ByteBuffer.allocate ((int) tableLength);
+    int sortedStart = 8 + 4 * (maxDoc + 1);
+    int dataStart = sortedStart + 4 * count;
+    int offset = 0;
+
+    table.putInt (0, maxDoc);
+    table.putInt (4, count);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      table.putInt (8 + 4 * docid, offset);
+      offset += lengths [docid];
+    }
+    table.putInt (8 + 4 * maxDoc, offset);
+
+    for (LeafReaderContext context : reader.leaves ()) {
+      Terms terms = context.reader ().terms (field);
+
+      if (terms == null)
+	continue;
+
+      TermsEnum ithTerm = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+	postings = ithTerm.postings (postings, PostingsEnum.NONE);
+
+	while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+	  int docid = context.docBase + postings.docID ();
+	  int start = dataStart + table.getInt (8 + 4 * docid);
+
+	  for (int i = 0; i < term.length; i++)
+	    table.put (start + i, term.bytes [term.offset + i]);
+	}
+      }
+    }
+
+    //  Pass 3:  Sort the docids that have external ids by external id.
+    //  Each segment's term dictionary is sorted, so the input is
+    //  usually a few sorted runs.
+
+    final int[] sorted = new int [count];
+    int n = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      if (lengths [docid] > 0)
+	sorted [n++] = docid;
+
+    final IdxExternalIds unsorted = new IdxExternalIds (table);
+
+    new IntroSorter () {
+      private int pivot;
+
+      protected int compare (int i, int j) {
+	return unsorted.compare (sorted [i], sorted [j]);
+      }
+
+      protected void swap (int i, int j) {
+	int tmp = sorted [i];
+	sorted [i] = sorted [j];
+	sorted [j] = tmp;
+      }
+
+      protected void setPivot (int i) {
+	this.pivot = sorted [i];
+      }
+
+      protected int comparePivot (int j) {
+	return unsorted.compare (this.pivot, sorted [j]);
+      }
+    }.sort (0, count);
+
+    for (int i = 0; i < count; i++)
+      table.putInt (sortedStart + 4 * i, sorted [i]);
+
+    return table;
+  }
+
+  /**
+   *  Compare the external ids of two documents in UTF-8 byte order,
+   *  which is the order of the Lucene term dictionary.
+   */
+  private int compare (int docid1, int docid2) {
+
+    int start1 = this.dataStart + this.table.getInt (8 + 4 * docid1);
+    int end1 = this.dataStart + this.table.getInt (8 + 4 * (docid1 + 1));
+    int start2 = this.dataStart + this.table.getInt (8 + 4 * docid2);
+    int end2 = this.dataStart + this.table.getInt (8 + 4 * (docid2 + 1));
+
+    while ((start1 < end1) && (start2 < end2)) {
+      int diff =
+	(this.table.get (start1++) & 0xff) - (this.table.get (start2++) & 0xff);
+      if (diff != 0)
+	return diff;
+    }
+
+    return (end1 - start1) - (end2 - start2);
+  }
+
+  /**
+   *  Compare the external id of a document to an external id, in
+   *  UTF-8 byte order.
+   */
+  private int compare (int docid, byte[] externalId) {
+
+    int start = this.dataStart + this.table.getInt (8 + 4 * docid);
+    int end = this.dataStart + this.table.getInt (8 + 4 * (docid + 1));
+    int i = 0;
+
+    while ((start < end) && (i < externalId.length)) {
+      int diff = (this.table.get (start++) & 0xff) - (externalId [i++] & 0xff);
+      if (diff != 0)
+	return diff;
+    }
+
+    return (end - start) - (externalId.length - i);
+  }
+
+  /**
+   *  Find the internal docid of a document.
+   *  @param externalId An external document id
+   *  @return the internal docid, or -1 if there is no such document
+   */
+  public int find (String externalId) {
+
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = this.count - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int docid = this.table.getInt (this.sortedStart + 4 * mid);
+      int cmp = this.compare (docid, key);
+
+      if (cmp < 0) {
+	lo = mid + 1;
+      } else if (cmp > 0) {
+	hi = mid - 1;
+      } else {
+	return docid;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal docid
+   *  @return the external id, or null if the document doesn't have one
+   */
+  public String get (int docid) {
+
+    int start = this.table.getInt (8 + 4 * docid);
+    int end = this.table.getInt (8 + 4 * (docid + 1));
+
+    if (start == end)
+      return null;
+
+    //  Absolute gets don't change the buffer's position, so the table
+    //  can be read by several threads at once.
+
+    byte[] bytes = new byte [end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes [i] = this.table.get (this.dataStart + start + i);
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the external ids of several documents.
+   *  @param docids Internal docids
+   *  @return the external ids, in the same order as docids
+   */
+  public String[] get (int[] docids) {
+
+    String[] externalIds = new String [docids.length];
+
+    for (int i = 0; i < docids.length; i++)
+      externalIds [i] = this.get (docids [i]);
+
+    return externalIds;
+  }
+
+  /**
+   *  Find the internal docids of several documents.
+   *  @param externalIds External document ids
+   *  @return the internal docids, in the iteration order of
+   *  externalIds; -1 for each external id that doesn't exist
+   */
+  public int[] resolve (Collection<String> externalIds) {
+
+    int[] docids = new int [externalIds.size ()];
+    int i = 0;
+
+    for (String externalId : externalIds)
+      docids [i++] = this.find (externalId);
+
+    return docids;
+  }
+
+  /**
+   *  Get the number of entries in the table.
+   *  @return The number of entries (the index's maxDoc).
+   */
+  public int size () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Load the external id table for an index, building and saving it
+   *  first if necessary.
+   *  @param indexPath The index directory
+   *  @param reader The index
+   *  @param field The name of the external id field
+   *  @return the table, or null if the index is too large for a table
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static IdxExternalIds open (String indexPath, IndexReader reader,
+				     String field)
+    throws IOException {
+
+    long version = IdxSidecar.getVersion (reader);
+    ByteBuffer table = IdxSidecar.map (indexPath, FILENAME, MAGIC, version);
+
+    if ((table == null) || (table.getInt (0) != reader.maxDoc ())) {
+      table = build (reader, field);
+
+      if (table == null)
+	return null;
+
+      IdxSidecar.write (indexPath, FILENAME, MAGIC, version, table);
+    }
+
+    return new IdxExternalIds (table);
+  }
+}
@@ -0,0 +1,416 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ *  An impact-ordered index of precomputed, quantized BM25 scores.
+ *  Each posting's BM25 score depends only on the term and the
+ *  document, so it can be computed offline and stored as a small
+ *  integer "impact".  Each term's list is stored as segments of
+ *  documents that have the same impact, highest impact first, so
+ *  score-at-a-time evaluation (see QryEvalSaat) can read the
+ *  postings that contribute the most to the scores first and stop
+ *  whenever its budget is spent.
+ *  <p>
+ *  The impact index is built offline (run this class to see a usage
+ *  message) and stored as a sidecar file (see IdxSidecar).  Impacts
+ *  are quantized linearly:  impact = round (score / scale), where
+ *  scale is the largest score in the impact index divided by
+ *  MAX_IMPACT, so impacts of different terms can be added.  The
+ *  scores are only valid for the k1 and b that the impact index was
+ *  built with.
+ *  </p><p>
+ *  The file format is:
+ *  </p>
+ *  <pre>
+ *    header:     k1 double, b double, scale double, count int
+ *    directory:  count x {keyLength int, key UTF-8, start int}
+ *    lists:      for each term {numSegments int,
+ *                               numSegments x {impact int, n int, docids int[n]}}
+ *  </pre>
+ *  <p>
+ *  The key of a term is field and term, separated by '\0'.  Segments
+ *  are stored in descending impact order, and the docids of a segment
+ *  in ascending order.
+ *  </p>
+ */
+public class IdxImpacts {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The largest impact.  Impacts are 8-bit values.
+   */
+  public static final int MAX_IMPACT = 255;
+
+  private static final String FILENAME = "QryEval.impacts";
+  private static final int MAGIC = 0x51454931;		// "QEI1"
+  private static final int HEADER_LENGTH = 8 + 8 + 8 + 4;
+
+  private static final String USAGE =
+    "Usage:  java IdxImpacts indexPath k1 b field [field ...]\n\n" +
+    "Build an impact-ordered index of the quantized BM25 scores of the\n" +
+    "postings of each term in each field.\n";
+
+  private final ByteBuffer table;
+  private final HashMap<String,Integer> directory =
+    new HashMap<String,Integer> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use an existing table.
+   *  @param table The table, positioned at byte 0.
+   */
+  private IdxImpacts (ByteBuffer table) {
+
+    this.table = table;
+
+    int count = table.getInt (HEADER_LENGTH - 4);
+    int p = HEADER_LENGTH;
+
+    for (int i = 0; i < count; i++) {
+      int keyLength = table.getInt (p);
+      byte[] key = new byte [keyLength];
+
+      for (int j = 0; j < keyLength; j++)
+	key [j] = table.get (p + 4 + j);
+
+      p += 4 + keyLength;
+      this.directory.put (new String (key, StandardCharsets.UTF_8),
+			  table.getInt (p));
+      p += 4;
+    }
+  }
+
+  /**
+   *  Build the impact index for fields of the current index and save
+   *  it in the index directory.
+   *  @param fields The fields
+   *  @param k1 The BM25 k1 parameter
+   *  @param b The BM25 b parameter
+   *  @return The number of terms in the impact index
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int build (String[] fields, double k1, double b)
+    throws IOException {
+
+    //  Pass 1:  Find the largest score, which determines the scale.
+
+    double maxScore = 0.0;
+
+    for (String field : fields) {
+      TermsEnum ithTerm = getTermsEnum (field);
+      PostingsEnum postings = null;
+      double[] norms = getNorms (field, k1, b);
+
+      while ((ithTerm != null) && (ithTerm.next () != null)) {
+	double idf = getIdf (ithTerm.docFreq ());
+	postings = ithTerm.postings (postings, PostingsEnum.FREQS);
+
+	while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+	  double tf = postings.freq ();
+	  maxScore = Math.max (maxScore,
+			       idf * tf / (tf + norms [postings.docID ()]));
+	}
+      }
+    }
+
+    double scale = (maxScore > 0.0) ? maxScore / MAX_IMPACT : 1.0;
+
+    //  Pass 2:  Quantize each term's scores and write its segments.
+    //  A counting sort by impact keeps the docids of each segment in
+    //  ascending order.
+
+    ByteArrayOutputStream listBytes = new ByteArrayOutputStream ();
+    DataOutputStream lists = new DataOutputStream (listBytes);
+    ArrayList<byte[]> keys = new ArrayList<byte[]> ();
+    ArrayList<Integer> starts = new ArrayList<Integer> ();
+    int[] docids = new int [16];
+    int[] impacts = new int [16];
+    int[] sorted = new int [16];
+    int[] counts = new int [MAX_IMPACT + 2];
+
+    for (String field : fields) {
+      TermsEnum ithTerm = getTermsEnum (field);
+      PostingsEnum postings = null;
+      double[] norms = getNorms (field, k1, b);
+
+      while ((ithTerm != null) && (ithTerm.next () != null)) {
+	int df = ithTerm.docFreq ();
+	double idf = getIdf (df);
+	int n = 0;
+
+	if (df > docids.length) {
+	  docids = new int [df];
+	  impacts = new int [df];
+	  sorted = new int [df];
+	}
+
+	Arrays.fill (counts, 0);
+	postings = ithTerm.postings (postings, PostingsEnum.FREQS);
+
+	while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+	  double tf = postings.freq ();
+	  int impact = (int) Math.round (idf * tf / (tf + norms [postings.docID ()]) / scale);
+
+	  docids [n] = postings.docID ();
+	  impacts [n] = Math.min (impact, MAX_IMPACT);
+	  counts [MAX_IMPACT - impacts [n] + 1] ++;
+	  n ++;
+	}
+
+	//  counts [i] becomes the start of the i'th segment (impact
+	//  MAX_IMPACT - i) in sorted.
+
+	int numSegments = 0;
+
+	for (int i = 1; i < counts.length; i++) {
+	  if (counts [i] > 0)
+	    numSegments ++;
+	  counts [i] += counts [i - 1];
+	}
+
+	for (int i = 0; i < n; i++)
+	  sorted [counts [MAX_IMPACT - impacts [i]] ++] = docids [i];
+
+	keys.add ((field + "\0" + ithTerm.term ().utf8ToString ()).getBytes (StandardCharsets.UTF_8));
+	starts.add (lists.size ());
+	lists.writeInt (numSegments);
+
+	for (int i = 0, start = 0; i <= MAX_IMPACT; i++) {
+	  int end = counts [i];
+
+	  if (end > start) {
+	    lists.writeInt (MAX_IMPACT - i);
+	    lists.writeInt (end - start);
+	    for (int j = start; j < end; j++)
+	      lists.writeInt (sorted [j]);
+	  }
+
+	  start = end;
+	}
+      }
+    }
+
+    lists.flush ();
+
+    //  Assemble the table.  List starts are relative to the end of the
+    //  directory until the directory size is known.
+
+    int directoryLength = HEADER_LENGTH;
+
+    for (byte[] key : keys)
+      directoryLength += 4 + key.length + 4;
+
+    if ((long) directoryLength + listBytes.size () >
+	Integer.MAX_VALUE - IdxSidecar.HEADER_LENGTH) {
+      throw new IllegalArgumentException ("The impact index is too large.");
+    }
+
+    ByteBuffer table = ByteBuffer.allocate (directoryLength + listBytes.size ());
+
+    table.putDouble (k1);
+    table.putDouble (b);
+    table.putDouble (scale);
+    table.putInt (keys.size ());
+
+    for (int i = 0; i < keys.size (); i++) {
+      table.putInt (keys.get (i).length);
+      table.put (keys.get (i));
+      table.putInt (directoryLength + starts.get (i));
+    }
+
+    table.put (listBytes.toByteArray ());
+
+    if (! IdxSidecar.write (Idx.getIndexPath (), FILENAME, MAGIC,
+			    IdxSidecar.getVersion (Idx.INDEXREADER), table)) {
+      throw new IOException ("Unable to write the impact index.");
+    }
+
+    return keys.size ();
+  }
+
+  /**
+   *  Get the BM25 idf of a term, as QrySopScore computes it.
+   */
+  private static double getIdf (int df) throws IOException {
+    double N = Idx.getNumDocs ();
+    return Math.max (0.0, Math.log ((N - df + 0.5) / (df + 0.5)));
+  }
+
+  /**
+   *  Get the length normalization of each document's field, i.e.,
+   *  k1 * (1 - b + b * lengthDoc / aveLengthDoc), indexed by docid.
+   */
+  private static double[] getNorms (String field, double k1, double b)
+    throws IOException {
+
+    int[] lengths = Idx.getFieldLengths (field);
+    double aveLengthDoc = (double) Idx.getSumOfFieldLengths (field) /
+      (double) Idx.getDocCount (field);
+    double[] norms = new double [lengths.length];
+
+    for (int docid = 0; docid < lengths.length; docid++)
+      norms [docid] = k1 * (1 - b + b * lengths [docid] / aveLengthDoc);
+
+    return norms;
+  }
+
+  /**
+   *  Get an iterator over the terms of a field of the current index.
+   *  Its postings have index-wide docids.
+   */
+  private static TermsEnum getTermsEnum (String field) throws IOException {
+    Terms terms = MultiTerms.getTerms (Idx.INDEXREADER, field);
+    return (terms == null) ? null : terms.iterator ();
+  }
+
+  /**
+   *  Does the impact index have a term?
+   *  @param field The field
+   *  @param term The term
+   *  @return true if the term's impact-ordered list is in the impact
+   *  index.
+   */
+  public boolean contains (String field, String term) {
+    return this.directory.containsKey (field + "\0" + term);
+  }
+
+  /**
+   *  Get the BM25 b parameter of the impact index.
+   *  @return b
+   */
+  public double getB () {
+    return this.table.getDouble (8);
+  }
+
+  /**
+   *  Get the BM25 k1 parameter of the impact index.
+   *  @return k1
+   */
+  public double getK1 () {
+    return this.table.getDouble (0);
+  }
+
+  /**
+   *  Get the score of one impact unit, i.e., score = impact * scale.
+   *  @return The scale.
+   */
+  public double getScale () {
+    return this.table.getDouble (16);
+  }
+
+  /**
+   *  Get the segments of a term's impact-ordered list.
+   *  @param field The field
+   *  @param term The term
+   *  @return The start of each segment, highest impact first, or
+   *  null if the term isn't in the impact index.
+   */
+  public int[] getSegments (String field, String term) {
+
+    Integer start = this.directory.get (field + "\0" + term);
+
+    if (start == null)
+      return null;
+
+    //  Absolute gets don't change the buffer's position, so the table
+    //  can be read by several threads at once.
+
+    int[] segments = new int [this.table.getInt (start)];
+    int p = start + 4;
+
+    for (int i = 0; i < segments.length; i++) {
+      segments [i] = p;
+      p += 8 + 4 * this.getSegmentLength (p);
+    }
+
+    return segments;
+  }
+
+  /**
+   *  Get a document of a segment.
+   *  @param segment The start of the segment
+   *  @param i The document's position in the segment
+   *  @return The internal docid.
+   */
+  public int getSegmentDocid (int segment, int i) {
+    return this.table.getInt (segment + 8 + 4 * i);
+  }
+
+  /**
+   *  Get the impact of the documents of a segment.
+   *  @param segment The start of the segment
+   *  @return The impact.
+   */
+  public int getSegmentImpact (int segment) {
+    return this.table.getInt (segment);
+  }
+
+  /**
+   *  Get the number of documents in a segment.
+   *  @param segment The start of the segment
+   *  @return The number of documents.
+   */
+  public int getSegmentLength (int segment) {
+    return this.table.getInt (segment + 4);
+  }
+
+  /**
+   *  Load the impact index for an index, if there is one.
+   *  @param indexPath The index directory
+   *  @param reader The index
+   *  @return the impact index, or null if there isn't a current one
+   *  @throws IOException Error reading the impact index.
+   */
+  public static IdxImpacts open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    ByteBuffer table = IdxSidecar.map (indexPath, FILENAME, MAGIC,
+				       IdxSidecar.getVersion (reader));
+
+    return (table == null) ? null : new IdxImpacts (table);
+  }
+
+  /**
+   *  Get the number of terms in the impact index.
+   *  @return The number of terms.
+   */
+  public int size () {
+    return this.directory.size ();
+  }
+
+  /**
+   *  Build an impact index.
+   *  @param args indexPath k1 b field [field ...]
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 4) {
+      System.out.print (USAGE);
+      return;
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (args[0]);
+
+    int count = build (Arrays.copyOfRange (args, 3, args.length),
+		       Double.parseDouble (args[1]),
+		       Double.parseDouble (args[2]));
+
+    timer.stop ();
+    System.out.println ("Terms:  " + count);
+    System.out.println ("Time:  " + timer);
+  }
+}
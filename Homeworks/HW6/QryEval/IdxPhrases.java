@@ -0,0 +1,343 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A phrase index of precomputed #NEAR/1 inverted lists for frequent
+ *  pairs of adjacent terms.  #NEAR/1 (a b) on common terms intersects
+ *  two long lists and checks positions in every document that contains
+ *  both terms; a phrase list is read directly.  QryParser replaces
+ *  #NEAR/1 (a b) with a QryIopPhrase when (a, b) is in the phrase index.
+ *  <p>
+ *  The phrase index is built offline (run this class to see a usage
+ *  message) and stored as a sidecar file (see IdxSidecar).  The builder
+ *  scans the term vectors of a field to count the documents that
+ *  contain each adjacent pair, keeps the pairs that occur in at least
+ *  minDf documents, and computes their #NEAR/1 lists, most frequent
+ *  first, until the size budget is spent.  Each list is computed by
+ *  QryIopNear, so a phrase list is identical to the list that #NEAR/1
+ *  would produce.
+ *  </p><p>
+ *  The file format is:
+ *  </p>
+ *  <pre>
+ *    count:      int, the number of phrases
+ *    directory:  count x {keyLength int, key UTF-8, start int}
+ *    lists:      for each phrase {df int, ctf int,
+ *                                 df x {docid int, tf int, positions int[tf]}}
+ *  </pre>
+ *  <p>
+ *  The key of a phrase is field, term1, and term2, separated by '\0'.
+ *  </p>
+ */
+public class IdxPhrases {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String FILENAME = "QryEval.phrases";
+  private static final int MAGIC = 0x51455031;		// "QEP1"
+
+  private static final String USAGE =
+    "Usage:  java IdxPhrases indexPath field minDf maxMB\n\n" +
+    "Build a phrase index of the #NEAR/1 lists of adjacent term pairs\n" +
+    "in field that occur in at least minDf documents.  The lists of the\n" +
+    "most frequent pairs are stored until maxMB megabytes are used.\n";
+
+  private final ByteBuffer table;
+  private final HashMap<String,Integer> directory =
+    new HashMap<String,Integer> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use an existing table.
+   *  @param table The table, positioned at byte 0.
+   */
+  private IdxPhrases (ByteBuffer table) {
+
+    this.table = table;
+
+    int count = table.getInt (0);
+    int p = 4;
+
+    for (int i = 0; i < count; i++) {
+      int keyLength = table.getInt (p);
+      byte[] key = new byte [keyLength];
+
+      for (int j = 0; j < keyLength; j++)
+	key [j] = table.get (p + 4 + j);
+
+      p += 4 + keyLength;
+      this.directory.put (new String (key, StandardCharsets.UTF_8),
+			  table.getInt (p));
+      p += 4;
+    }
+  }
+
+  /**
+   *  Build the phrase index for a field of the current index and save
+   *  it in the index directory.
+   *  @param field The field
+   *  @param minDf The minimum number of documents that contain a pair
+   *  @param maxBytes The maximum size of the phrase lists
+   *  @return The number of phrases in the phrase index
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int build (String field, int minDf, long maxBytes)
+    throws IOException {
+
+    //  Pass 1:  Count the documents that contain each adjacent pair.
+    //  A pair can't occur in more documents than either of its terms,
+    //  so pairs that contain rare terms aren't counted.  Terms get
+    //  ids in the order that they are seen; -1 is a rare term.
+
+    HashMap<String,Integer> termIds = new HashMap<String,Integer> ();
+    ArrayList<String> terms = new ArrayList<String> ();
+    HashMap<Long,Integer> pairDf = new HashMap<Long,Integer> ();
+    HashSet<Long> docPairs = new HashSet<Long> ();
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      TermVector tv = new TermVector (docid, field);
+      int[] ids = new int [tv.stemsLength ()];
+
+      for (int i = 1; i < ids.length; i++) {
+	String stem = tv.stemString (i);
+	Integer id = termIds.get (stem);
+
+	if (id == null) {
+	  id = -1;
+
+	  if (Idx.getDocFreq (field, stem) >= minDf) {
+	    id = terms.size ();
+	    terms.add (stem);
+	  }
+
+	  termIds.put (stem, id);
+	}
+
+	ids [i] = id;
+      }
+
+      docPairs.clear ();
+
+      for (int pos = 1; pos < tv.positionsLength (); pos++) {
+	int stem1 = tv.stemAt (pos - 1);
+	int stem2 = tv.stemAt (pos);
+
+	if ((stem1 > 0) && (stem2 > 0) && (ids [stem1] >= 0) && (ids [stem2] >= 0))
+	  docPairs.add (((long) ids [stem1] << 32) | ids [stem2]);
+      }
+
+      for (Long pair : docPairs)
+	pairDf.merge (pair, 1, Integer::sum);
+    }
+
+    //  Keep the frequent pairs, most frequent first.
+
+    ArrayList<Map.Entry<Long,Integer>> frequent =
+      new ArrayList<Map.Entry<Long,Integer>> ();
+
+    for (Map.Entry<Long,Integer> entry : pairDf.entrySet ())
+      if (entry.getValue () >= minDf)
+	frequent.add (entry);
+
+    frequent.sort ((e1, e2) -> (! e1.getValue ().equals (e2.getValue ())) ?
+		   Integer.compare (e2.getValue (), e1.getValue ()) :
+		   Long.compare (e1.getKey (), e2.getKey ()));
+
+    //  Pass 2:  Compute the #NEAR/1 list of each pair until the size
+    //  budget is spent.  Lists that don't fit are skipped; a smaller
+    //  list later on may still fit.
+
+    ByteArrayOutputStream listBytes = new ByteArrayOutputStream ();
+    DataOutputStream lists = new DataOutputStream (listBytes);
+    ArrayList<byte[]> keys = new ArrayList<byte[]> ();
+    ArrayList<Integer> starts = new ArrayList<Integer> ();
+    int[] positions = new int [16];
+
+    for (Map.Entry<Long,Integer> entry : frequent) {
+      String term1 = terms.get ((int) (entry.getKey () >>> 32));
+      String term2 = terms.get ((int) (entry.getKey () & 0xffffffffL));
+
+      QryIopNear near = new QryIopNear (1);
+      near.appendArg (new QryIopTerm (term1, field));
+      near.appendArg (new QryIopTerm (term2, field));
+      near.planPostings (true);
+      near.initialize (null);
+
+      int df = near.getDf ();
+      int ctf = near.getCtf ();
+      long size = 8L + 8L * df + 4L * ctf;
+
+      if ((df == 0) || (listBytes.size () + size > maxBytes))
+	continue;
+
+      keys.add ((field + "\0" + term1 + "\0" + term2).getBytes (StandardCharsets.UTF_8));
+      starts.add (listBytes.size ());
+      lists.writeInt (df);
+      lists.writeInt (ctf);
+
+      while (near.docIteratorHasMatch (null)) {
+	int docid = near.docIteratorGetMatch ();
+	int tf = 0;
+
+	if (near.docIteratorGetMatchTf () > positions.length)
+	  positions = new int [near.docIteratorGetMatchTf ()];
+
+	while (near.locIteratorHasMatch ()) {
+	  positions [tf++] = near.locIteratorGetMatch ();
+	  near.locIteratorAdvance ();
+	}
+
+	lists.writeInt (docid);
+	lists.writeInt (tf);
+	for (int i = 0; i < tf; i++)
+	  lists.writeInt (positions [i]);
+
+	near.docIteratorAdvancePast (docid);
+      }
+    }
+
+    lists.flush ();
+
+    //  Assemble the table.  List starts are relative to the end of the
+    //  directory until the directory size is known.
+
+    int directoryLength = 4;
+
+    for (byte[] key : keys)
+      directoryLength += 4 + key.length + 4;
+
+    if ((long) directoryLength + listBytes.size () >
+	Integer.MAX_VALUE - IdxSidecar.HEADER_LENGTH) {
+      throw new IllegalArgumentException ("The phrase index is too large.");
+    }
+
+    ByteBuffer table = ByteBuffer.allocate (directoryLength + listBytes.size ());
+
+    table.putInt (keys.size ());
+
+    for (int i = 0; i < keys.size (); i++) {
+      table.putInt (keys.get (i).length);
+      table.put (keys.get (i));
+      table.putInt (directoryLength + starts.get (i));
+    }
+
+    table.put (listBytes.toByteArray ());
+
+    if (! IdxSidecar.write (Idx.getIndexPath (), FILENAME, MAGIC,
+			    IdxSidecar.getVersion (Idx.INDEXREADER), table)) {
+      throw new IOException ("Unable to write the phrase index.");
+    }
+
+    return keys.size ();
+  }
+
+  /**
+   *  Get the #NEAR/1 inverted list of a pair of terms.
+   *  @param field The field
+   *  @param term1 The first term
+   *  @param term2 The second term
+   *  @return The inverted list, or null if the pair isn't in the
+   *  phrase index.
+   */
+  public InvList get (String field, String term1, String term2) {
+
+    Integer start = this.directory.get (field + "\0" + term1 + "\0" + term2);
+
+    if (start == null)
+      return null;
+
+    //  Absolute gets don't change the buffer's position, so the table
+    //  can be read by several threads at once.
+
+    InvList list = new InvList (field);
+    int df = this.table.getInt (start);
+    int p = start + 8;
+    int[] positions = new int [16];
+
+    for (int n = 0; n < df; n++) {
+      int docid = this.table.getInt (p);
+      int tf = this.table.getInt (p + 4);
+
+      if (tf > positions.length)
+	positions = new int [tf];
+
+      p += 8;
+
+      for (int i = 0; i < tf; i++, p += 4)
+	positions [i] = this.table.getInt (p);
+
+      list.appendPosting (docid, positions, tf);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Does the phrase index have a pair of terms?
+   *  @param field The field
+   *  @param term1 The first term
+   *  @param term2 The second term
+   *  @return true if the pair's #NEAR/1 list is in the phrase index.
+   */
+  public boolean contains (String field, String term1, String term2) {
+    return this.directory.containsKey (field + "\0" + term1 + "\0" + term2);
+  }
+
+  /**
+   *  Load the phrase index for an index, if there is one.
+   *  @param indexPath The index directory
+   *  @param reader The index
+   *  @return the phrase index, or null if there isn't a current one
+   *  @throws IOException Error reading the phrase index.
+   */
+  public static IdxPhrases open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    ByteBuffer table = IdxSidecar.map (indexPath, FILENAME, MAGIC,
+				       IdxSidecar.getVersion (reader));
+
+    return (table == null) ? null : new IdxPhrases (table);
+  }
+
+  /**
+   *  Get the number of phrases in the phrase index.
+   *  @return The number of phrases.
+   */
+  public int size () {
+    return this.directory.size ();
+  }
+
+  /**
+   *  Build a phrase index.
+   *  @param args indexPath field minDf maxMB
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length != 4) {
+      System.out.print (USAGE);
+      return;
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (args[0]);
+
+    int count = build (args[1], Integer.parseInt (args[2]),
+		       Long.parseLong (args[3]) * 1024 * 1024);
+
+    timer.stop ();
+    System.out.println ("Phrases:  " + count);
+    System.out.println ("Time:  " + timer);
+  }
+}
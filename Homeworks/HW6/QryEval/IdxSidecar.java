@@ -0,0 +1,144 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  IdxSidecar manages auxiliary files that QryEval derives from a
+ *  Lucene index (e.g., the docid to external id table).  Sidecar
+ *  files are stored in the index directory.  Each file starts with a
+ *  small header that records the file format and the version of the
+ *  index that it was built from, so a stale file is detected and
+ *  rebuilt automatically.
+ *  <p>
+ *  Sidecar files are memory-mapped, so they are shared by the
+ *  operating system's page cache across runs.  If the index
+ *  directory isn't writable, the sidecar is built in memory instead.
+ *  </p>
+ */
+public class IdxSidecar {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The size of the header written at the start of each sidecar
+   *  file:  magic number (int), index version (long), payload length
+   *  (long).
+   */
+  public static final int HEADER_LENGTH = 4 + 8 + 8;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the version of an index.  Sidecar files built from a
+   *  different version are stale.
+   *  @param reader An IndexReader
+   *  @return the index version, or 0 if the reader doesn't have one
+   */
+  public static long getVersion (IndexReader reader) {
+    if (reader instanceof DirectoryReader) {
+      return ((DirectoryReader) reader).getVersion ();
+    }
+    return 0;
+  }
+
+  /**
+   *  Memory-map a sidecar file.  The returned buffer starts at the
+   *  first byte of the payload (i.e., after the header).
+   *  @param indexPath The index directory
+   *  @param name The name of the sidecar file
+   *  @param magic The magic number of the file format
+   *  @param version The version of the index
+   *  @return the payload, or null if the file is missing or stale
+   *  @throws IOException Error reading the sidecar file
+   */
+  public static ByteBuffer map (String indexPath, String name, int magic,
+				long version)
+    throws IOException {
+
+    Path path = Paths.get (indexPath, name);
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      long size = channel.size ();
+
+      if ((size < HEADER_LENGTH) ||
+	  (size - HEADER_LENGTH > Integer.MAX_VALUE)) {
+	return null;
+      }
+
+      MappedByteBuffer buffer =
+	channel.map (FileChannel.MapMode.READ_ONLY, 0, size);
+
+      if ((buffer.getInt (0) != magic) ||
+	  (buffer.getLong (4) != version) ||
+	  (buffer.getLong (12) != size - HEADER_LENGTH)) {
+	return null;
+      }
+
+      buffer.position (HEADER_LENGTH);
+      return buffer.slice ();
+    }
+  }
+
+  /**
+   *  Write a sidecar file.  The file is written to a temporary name
+   *  and then renamed, so a reader never sees a partial file.  Errors
+   *  are not fatal; the caller can continue with the in-memory copy.
+   *  @param indexPath The index directory
+   *  @param name The name of the sidecar file
+   *  @param magic The magic number of the file format
+   *  @param version The version of the index
+   *  @param payload The contents of the file (from 0 to limit)
+   *  @return true if the file was written, otherwise false
+   */
+  public static boolean write (String indexPath, String name, int magic,
+			       long version, ByteBuffer payload) {
+
+    Path path = Paths.get (indexPath, name);
+    Path tmpPath = Paths.get (indexPath, name + ".tmp");
+
+    try (FileChannel channel =
+	   FileChannel.open (tmpPath, StandardOpenOption.CREATE,
+			     StandardOpenOption.TRUNCATE_EXISTING,
+			     StandardOpenOption.WRITE)) {
+
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+      header.putInt (magic);
+      header.putLong (version);
+      header.putLong (payload.limit ());
+      header.flip ();
+
+      ByteBuffer body = payload.duplicate ();
+      body.position (0);
+
+      while (header.hasRemaining ())
+	channel.write (header);
+      while (body.hasRemaining ())
+	channel.write (body);
+    } catch (IOException ex) {
+      return false;
+    }
+
+    try {
+      Files.move (tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+		  StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      try {
+	Files.deleteIfExists (tmpPath);
+      } catch (IOException ignored) {
+      }
+      return false;
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,290 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Corpus statistics for one index.  Retrieval models and query
+ *  expansion ask for the same statistics over and over again, and
+ *  Lucene computes each of them from scratch (e.g., docFreq and
+ *  totalTermFreq each seek the term dictionary of every segment).
+ *  IdxStats caches them.
+ *  <p>
+ *  There are three kinds of statistics:
+ *  </p>
+ *  <ul>
+ *  <li>Index and field statistics (numDocs, docCount, sum of field
+ *      lengths, minimum field length) are computed once and never
+ *      evicted.
+ *  <li>Term statistics (df, ctf) are kept in a bounded LRU cache.
+ *      A term that is not cached costs one dictionary seek, which
+ *      provides both df and ctf.
+ *  <li>getTermStats resolves a set of terms in one pass over a single
+ *      TermsEnum, in term order, which is much faster than seeking
+ *      each term independently.
+ *  </ul>
+ */
+public class IdxStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The maximum number of (field, term) entries in the term cache.
+   */
+  public static final int TERM_CACHE_SIZE = 1 << 16;
+
+  private final IndexReader reader;
+  private final long numDocs;
+  private final HashMap<String,FieldStats> fieldStats =
+    new HashMap<String,FieldStats> ();
+  private final LinkedHashMap<Term,TermStats> termStats =
+    new LinkedHashMap<Term,TermStats> (1024, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<Term,TermStats> eldest) {
+	return size () > TERM_CACHE_SIZE;
+      }
+    };
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Statistics for one field.
+   */
+  private static class FieldStats {
+    private int docCount;
+    private long sumTotalTermFreq;
+    private int minLength = -1;		// -1 until it is computed
+    private Terms terms;		// null if the field isn't indexed
+  }
+
+  /**
+   *  Statistics for one term in one field.
+   */
+  public static class TermStats {
+
+    /**
+     *  Document frequency:  The number of documents that contain the
+     *  term in the field.
+     */
+    public final int df;
+
+    /**
+     *  Collection term frequency:  The number of times that the term
+     *  occurs in the field across the corpus.
+     */
+    public final long ctf;
+
+    private TermStats (int df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  private static final TermStats NO_STATS = new TermStats (0, 0);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param reader The index that statistics are computed from.
+   */
+  public IdxStats (IndexReader reader) {
+    this.reader = reader;
+    this.numDocs = reader.numDocs ();
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocCount (String fieldName) throws IOException {
+    return this.getFieldStats (fieldName).docCount;
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The document frequency
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocFreq (String fieldName, String term) throws IOException {
+    return this.getTermStats (fieldName, term).df;
+  }
+
+  /**
+   *  Get the statistics for a field, computing them if necessary.
+   */
+  private synchronized FieldStats getFieldStats (String fieldName)
+    throws IOException {
+
+    FieldStats stats = this.fieldStats.get (fieldName);
+
+    if (stats == null) {
+      stats = new FieldStats ();
+      stats.docCount = this.reader.getDocCount (fieldName);
+      stats.sumTotalTermFreq = this.reader.getSumTotalTermFreq (fieldName);
+      stats.terms = MultiTerms.getTerms (this.reader, fieldName);
+      this.fieldStats.put (fieldName, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the length of the shortest non-empty instance of a field.
+   *  It is computed from the field's norms the first time that it is
+   *  requested.
+   *  @param fieldName The field name.
+   *  @return The shortest field length, or 0 if the field is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized int getMinFieldLength (String fieldName)
+    throws IOException {
+
+    FieldStats stats = this.getFieldStats (fieldName);
+
+    if (stats.minLength < 0) {
+      long minLength = Long.MAX_VALUE;
+
+      for (LeafReaderContext leafContext : this.reader.leaves ()) {
+	NumericDocValues normValues =
+	  leafContext.reader ().getNormValues (fieldName);
+
+	if (normValues == null)
+	  continue;
+
+	while (normValues.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+	  long length = normValues.longValue ();
+
+	  if ((length > 0) && (length < minLength))
+	    minLength = length;
+	}
+      }
+
+      stats.minLength = (minLength == Long.MAX_VALUE) ? 0 : (int) minLength;
+    }
+
+    return stats.minLength;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getSumOfFieldLengths (String fieldName) throws IOException {
+    return this.getFieldStats (fieldName).sumTotalTermFreq;
+  }
+
+  /**
+   *  Get the df and ctf of a term in a field.  The statistics are
+   *  cached.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The term's statistics.  df and ctf are 0 if the term
+   *  doesn't occur in the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized TermStats getTermStats (String fieldName, String term)
+    throws IOException {
+
+    Term key = new Term (fieldName, term);
+    TermStats stats = this.termStats.get (key);
+
+    if (stats == null) {
+      Terms terms = this.getFieldStats (fieldName).terms;
+      stats = (terms == null) ? NO_STATS :
+	seek (terms.iterator (), key.bytes ());
+      this.termStats.put (key, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the df and ctf of several terms in a field.  Terms that
+   *  aren't cached are resolved in one pass over the term dictionary,
+   *  in sorted order, and then cached.
+   *  @param fieldName The field name.
+   *  @param terms The terms.
+   *  @return A map from each term to its statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized Map<String,TermStats> getTermStats (String fieldName,
+							 Collection<String> terms)
+    throws IOException {
+
+    Map<String,TermStats> result = new HashMap<String,TermStats> ();
+    List<Term> misses = new ArrayList<Term> ();
+
+    for (String term : terms) {
+      Term key = new Term (fieldName, term);
+      TermStats stats = this.termStats.get (key);
+
+      if (stats == null) {
+	misses.add (key);
+      } else {
+	result.put (term, stats);
+      }
+    }
+
+    if (misses.isEmpty ())
+      return result;
+
+    //  Term.compareTo uses the index's (UTF-8 byte) order, so the
+    //  seeks below move forward through the dictionary.
+
+    Collections.sort (misses);
+
+    Terms fieldTerms = this.getFieldStats (fieldName).terms;
+    TermsEnum ithTerm = (fieldTerms == null) ? null : fieldTerms.iterator ();
+
+    for (Term key : misses) {
+      TermStats stats = (ithTerm == null) ? NO_STATS : seek (ithTerm, key.bytes ());
+      this.termStats.put (key, stats);
+      result.put (key.text (), stats);
+    }
+
+    return result;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The collection term frequency
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return this.getTermStats (fieldName, term).ctf;
+  }
+
+  /**
+   *  Look up a term's statistics with a single dictionary seek.
+   */
+  private static TermStats seek (TermsEnum ithTerm, BytesRef term)
+    throws IOException {
+
+    if (! ithTerm.seekExact (term))
+      return NO_STATS;
+
+    return new TermStats (ithTerm.docFreq (), ithTerm.totalTermFreq ());
+  }
+}
@@ -18,6 +18,13 @@ public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The number of postings in a block of impact metadata.  It is the
+   *  same as the block size of Lucene's postings, so that lists that
+   *  are streamed from the index have blocks of the same size.
+   */
+  public static final int BLOCK_SIZE = 128;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -36,48 +43,96 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The postings, stored in parallel arrays to avoid the space and
+   *  time costs of one object per posting and one boxed Integer per
+   *  position.  Posting n has document docids[n] and term frequency
+   *  tfs[n]; its locations are positions[positionStarts[n]] to
+   *  positions[positionStarts[n+1]-1].  The arrays grow as postings
+   *  are appended, so they may be longer than df.
+   */
+  private int[] docids = new int[8];
+  private int[] tfs = new int[8];
+  private int[] positionStarts = new int[9];
+  private int[] positions = new int[16];
+
+  /**
+   *  False if the list stores only term frequencies, not positions.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  private boolean hasPositions = true;
+
+  /**
+   *  Block-max impact metadata, computed the first time that it is
+   *  needed.  The impacts of block b are impactTfs[i] and
+   *  impactLengths[i] for impactStarts[b] <= i < impactStarts[b+1].
+   */
+  private int[] impactStarts = null;
+  private int[] impactTfs;
+  private int[] impactLengths;
 
   //  --------------- Nested classes --------------------------------
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  The impacts of a block of postings:  (tf, length) pairs such that
+   *  for every posting in the block, some pair has a tf at least as
+   *  large and a field length at least as short.  A score that grows
+   *  with tf and shrinks with the field length is at most its largest
+   *  value over the pairs.  Dynamic pruning (see QryEvalWand) uses
+   *  impacts to skip blocks of documents that can't score well.
    */
-  public class DocPosting {
+  public static class Impacts {
+
+    private int size = 0;
+    private int[] tfs = new int [8];
+    private int[] lengths = new int [8];
 
     /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
+     *  Add a (tf, length) pair.
+     *  @param tf A term frequency.
+     *  @param length A field length.
      */
-    public int docid = 0;
+    public void add (int tf, int length) {
+
+      if (this.size == this.tfs.length) {
+	this.tfs = Arrays.copyOf (this.tfs, 2 * this.size);
+	this.lengths = Arrays.copyOf (this.lengths, 2 * this.size);
+      }
+
+      this.tfs [this.size] = tf;
+      this.lengths [this.size] = length;
+      this.size ++;
+    }
 
     /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
+     *  Remove all pairs.
      */
-    public int tf = 0;
+    public void clear () {
+      this.size = 0;
+    }
 
     /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
+     *  Get the field length of the i'th pair.
+     *  @param i The index of the pair.
+     *  @return The field length.
      */
-    public Vector<Integer> positions = new Vector<Integer>();
+    public int getLength (int i) {
+      return this.lengths [i];
+    }
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
+    /**
+     *  Get the term frequency of the i'th pair.
+     *  @param i The index of the pair.
+     *  @return The term frequency.
+     */
+    public int getTf (int i) {
+      return this.tfs [i];
     }
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
+    /**
+     *  Get the number of pairs.
+     *  @return The number of pairs.
+     */
+    public int size () {
+      return this.size;
     }
   }
 
@@ -98,32 +153,56 @@ public class InvList {
   }
 
   /**
-   *  Get an inverted list from the index.
+   *  Get an inverted list, including positions, from the index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
    *  @param fieldString The field that the term occurs in.
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index.  Decoding positions is a large
+   *  part of the cost of fetching a list, so a list that is only used
+   *  for term frequencies should be fetched without them.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions If false, only docids and term frequencies are fetched.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean positions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.hasPositions = positions;
 
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = (int) Idx.getDocFreq(fieldString, termString);
+
+    if (docFreq < 1)
       return;
 
+    //  The term statistics give the final size of the list, so the
+    //  arrays can be allocated once.
+
+    this.ensureCapacity(docFreq, (positions) ?
+                        (int) Idx.getTotalTermFreq(fieldString, termString) : 0);
+
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
 
     for (LeafReaderContext context : Idx.INDEXREADER.leaves()) {
 
       PostingsEnum postings =
-	context.reader().postings (term, PostingsEnum.POSITIONS);
+	context.reader().postings (term, (positions) ?
+				  PostingsEnum.POSITIONS : PostingsEnum.FREQS);
 
       if (postings != null) {
 
@@ -136,12 +215,23 @@ public class InvList {
 
 	  int docid = context.docBase + postings.docID();
 	  int tf = postings.freq();
-	  int[] locations = new int[tf];
 
-	  for (int j = 0; j < tf; j++)
-	    locations[j] = postings.nextPosition();
+	  int start = this.positionStarts[this.df];
+	  int end = start;
 
-	  this.postings.add(new DocPosting(docid, locations));
+	  if (positions) {
+	    end += tf;
+	    this.ensureCapacity(this.df + 1, end);
+
+	    for (int j = start; j < end; j++)
+	      this.positions[j] = postings.nextPosition();
+	  } else {
+	    this.ensureCapacity(this.df + 1, 0);
+	  }
+
+	  this.docids[this.df] = docid;
+	  this.tfs[this.df] = tf;
+	  this.positionStarts[this.df + 1] = end;
 	  this.df++;
 	  this.ctf += tf;
 	}
@@ -157,29 +247,253 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
+
+    int[] locations = new int[positions.size()];
+
+    for (int i = 0; i < locations.length; i++)
+      locations[i] = positions.get(i);
+
+    return this.appendPosting (docid, locations, locations.length);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.  The locations are
+   *  copied, so the caller may reuse the array.
+   *  @param docid The internal document id of the posting.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of positions in locations to use.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] locations, int tf) {
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    int start = this.positionStarts[this.df];
+
+    this.ensureCapacity (this.df + 1, start + tf);
+    System.arraycopy (locations, 0, this.positions, start, tf);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionStarts[this.df + 1] = start + tf;
+    this.df ++;
+    this.ctf += tf;
+    return true;
+  }
+
+  /**
+   *  Append a posting without locations to the posting list.  Once
+   *  such a posting is appended, the list no longer has positions.
+   *  Posting must be appended in docid order, otherwise this method
+   *  fails.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, 0);
 
-    this.postings.add (p);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionStarts[this.df + 1] = this.positionStarts[this.df];
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.hasPositions = false;
     return true;
   }
 
+  /**
+   *  Make sure that the arrays can hold at least the specified number
+   *  of postings and positions.
+   *  @param numPostings The number of postings.
+   *  @param numPositions The number of positions.
+   */
+  private void ensureCapacity (int numPostings, int numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int size = Math.max (numPostings, this.docids.length + (this.docids.length >> 1));
+      this.docids = Arrays.copyOf (this.docids, size);
+      this.tfs = Arrays.copyOf (this.tfs, size);
+      this.positionStarts = Arrays.copyOf (this.positionStarts, size + 1);
+    }
+
+    if (numPositions > this.positions.length) {
+      int size = Math.max (numPositions, this.positions.length + (this.positions.length >> 1));
+      this.positions = Arrays.copyOf (this.positions, size);
+    }
+  }
+
+  /**
+   *  Find the first document at or after index n whose id is at least
+   *  docid.  Galloping search probes n+1, n+2, n+4, ... until it passes
+   *  docid, and then binary searches the last interval.  A nearby
+   *  target costs about as much as a linear scan, and a distant target
+   *  costs O(log distance), so a short list can skip through a long list
+   *  quickly.
+   *  @param n The index to start from.
+   *  @param docid The target document id.
+   *  @return The index of the first document at or after n whose id is
+   *  at least docid, or df if there is no such document.
+   */
+  public int advance(int n, int docid) {
+
+    if ((n >= this.df) || (this.docids[n] >= docid))
+      return n;
+
+    //  docids[lo] < docid.  Gallop until docids[hi] >= docid or hi
+    //  reaches the end of the list.
+
+    int lo = n;
+    int step = 1;
+    int hi = n + 1;
+
+    while ((hi < this.df) && (this.docids[hi] < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = (step < this.df - n) ? n + step : this.df;
+    }
+
+    //  Binary search (lo, hi] for the first docid >= docid.
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < docid) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Get the impacts of a block of postings.  The block impacts of the
+   *  list are computed the first time that they are needed, and are
+   *  kept with the list (e.g., in the InvListCache).
+   *  @param block The index of the block, i.e., n / BLOCK_SIZE for
+   *  posting n.
+   *  @param impacts Set to the impacts of the block.
+   *  @return The docid of the last posting in the block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockImpacts (int block, Impacts impacts) throws IOException {
+
+    this.computeImpacts ();
+
+    impacts.clear ();
+
+    for (int i = this.impactStarts[block]; i < this.impactStarts[block + 1]; i++)
+      impacts.add (this.impactTfs[i], this.impactLengths[i]);
+
+    return this.docids[Math.min ((block + 1) * BLOCK_SIZE, this.df) - 1];
+  }
+
+  /**
+   *  Compute the impacts of each block of postings, if that hasn't been
+   *  done already.  The impacts of a block are the postings that no
+   *  other posting in the block beats on both tf and field length.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private synchronized void computeImpacts () throws IOException {
+
+    if (this.impactStarts != null)
+      return;
+
+    int[] lengths = Idx.getFieldLengths (this.field);
+    int numBlocks = (this.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] starts = new int[numBlocks + 1];
+    int[] tfs = new int[this.df];
+    int[] blockLengths = new int[this.df];
+    long[] block = new long[BLOCK_SIZE];
+    int size = 0;
+
+    for (int b = 0; b < numBlocks; b++) {
+      int first = b * BLOCK_SIZE;
+      int n = Math.min (BLOCK_SIZE, this.df - first);
+
+      //  Sort the postings by decreasing tf, then increasing length.  A
+      //  posting is an impact if it is shorter than every posting
+      //  before it.
+
+      for (int i = 0; i < n; i++) {
+	block[i] = ((long) (Integer.MAX_VALUE - this.tfs[first + i]) << 32) |
+	  (lengths[this.docids[first + i]] & 0xffffffffL);
+      }
+
+      Arrays.sort (block, 0, n);
+      starts[b] = size;
+
+      long shortest = Long.MAX_VALUE;
+
+      for (int i = 0; i < n; i++) {
+	long length = block[i] & 0xffffffffL;
+
+	if (length < shortest) {
+	  tfs[size] = Integer.MAX_VALUE - (int) (block[i] >>> 32);
+	  blockLengths[size] = (int) length;
+	  size++;
+	  shortest = length;
+	}
+      }
+    }
+
+    starts[numBlocks] = size;
+    this.impactTfs = Arrays.copyOf (tfs, size);
+    this.impactLengths = Arrays.copyOf (blockLengths, size);
+    this.impactStarts = starts;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Estimate the number of bytes used by an inverted list that has the
+   *  specified statistics.
+   *  @param df The list's document frequency.
+   *  @param ctf The list's collection term frequency.
+   *  @return The estimated size, in bytes.
+   */
+  public static long estimateBytes(long df, long ctf) {
+    return 64 + 4 * (3 * df + 1 + ctf);
+  }
+
+  /**
+   *  Get the i'th position in the n'th document of the inverted list.
+   *  It is an error to call this method if the list doesn't have
+   *  positions.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested position, less than getTf(n).
+   *  @return The position.
+   */
+  public int getPosition(int n, int i) {
+    return this.positions[this.positionStarts[n] + i];
+  }
+
+  /**
+   *  Does the list store the positions of its postings?
+   *  @return false if the list stores only term frequencies.
+   */
+  public boolean hasPositions() {
+    return this.hasPositions;
   }
 
   /**
@@ -188,7 +502,17 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get the number of bytes used by the inverted list, including any
+   *  unused capacity.
+   *  @return The size, in bytes.
+   */
+  public long sizeInBytes() {
+    return 64 + 4L * (this.docids.length + this.tfs.length +
+                      this.positionStarts.length + this.positions.length);
   }
 
   /**
@@ -199,11 +523,13 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      if (this.hasPositions) {
+        for (int j = 0; j < this.getTf(i); j++) {
+          System.out.print(this.getPosition(i, j) + " ");
+        }
       }
 
       System.out.println();
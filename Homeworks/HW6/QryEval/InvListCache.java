@@ -0,0 +1,174 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A process-wide cache of term inverted lists.  The same terms are
+ *  fetched many times during a run (the original query, the expanded
+ *  query, diversity intents, training queries, ...), and each fetch
+ *  decodes the postings from Lucene again.  InvListCache keeps recently
+ *  used lists, keyed by (index, field, term), so that a repeated term
+ *  is decoded once.  A list that has positions also satisfies requests
+ *  for a list without positions.
+ *  <p>
+ *  The cache is bounded by the (estimated) number of bytes in the
+ *  cached lists, not the number of lists, because list sizes vary by
+ *  orders of magnitude.  The least recently used lists are evicted
+ *  when the bound is exceeded.  A list that is larger than a fraction
+ *  of the bound is not cached, so that one very common term can't
+ *  flush the cache; such lists are better streamed (see QryIopTerm).
+ *  </p><p>
+ *  Cached lists are shared, so they must not be modified.  The cache is
+ *  thread-safe.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The default bound on the size of the cache, in bytes.
+   */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /**
+   *  A list is cached only if it is at most 1/MAX_ENTRY_FRACTION of
+   *  the cache's bound.
+   */
+  private static final int MAX_ENTRY_FRACTION = 8;
+
+  private static long maxBytes = DEFAULT_MAX_BYTES;
+  private static long bytes = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  private static final LinkedHashMap<String,InvList> lists =
+    new LinkedHashMap<String,InvList> (1024, 0.75f, true);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Decide whether a term's inverted list is small enough to cache,
+   *  using the term's statistics.
+   *  @param df The term's document frequency.
+   *  @param ctf The term's collection term frequency.
+   *  @param positions Does the list include positions?
+   *  @return true if a list of that size would be cached.
+   */
+  public static synchronized boolean fits (long df, long ctf,
+					   boolean positions) {
+    return (InvList.estimateBytes (df, (positions) ? ctf : 0) <=
+	    maxBytes / MAX_ENTRY_FRACTION);
+  }
+
+  /**
+   *  Get the inverted list for a term in the current index, from the
+   *  cache if possible.  If the list isn't cached, it is fetched from
+   *  the index and cached (if it fits).
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions Does the caller need positions?
+   *  @return The inverted list, which must not be modified.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList get (String termString, String fieldString,
+			     boolean positions)
+    throws IOException {
+
+    String key = Idx.getIndexPath () + "\u0000" + fieldString +
+      "\u0000" + termString;
+    String positionsKey = key + "\u0000P";
+
+    synchronized (InvListCache.class) {
+      InvList list = lists.get (positionsKey);
+
+      if ((list == null) && (! positions))
+	list = lists.get (key);
+
+      if (list != null) {
+	hits ++;
+	return list;
+      }
+
+      misses ++;
+    }
+
+    if (positions)
+      key = positionsKey;
+
+    //  Fetch the list without holding the lock, so that other threads
+    //  can use the cache.  If two threads fetch the same list, the
+    //  second one replaces the first.
+
+    InvList list = new InvList (termString, fieldString, positions);
+    long size = list.sizeInBytes ();
+
+    synchronized (InvListCache.class) {
+      if (size <= maxBytes / MAX_ENTRY_FRACTION) {
+	InvList old = lists.put (key, list);
+
+	if (old != null)
+	  bytes -= old.sizeInBytes ();
+
+	bytes += size;
+	evict ();
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   *  Discard cached lists, least recently used first, until the cache
+   *  is within its bound.
+   */
+  private static void evict () {
+
+    Iterator<Map.Entry<String,InvList>> it = lists.entrySet ().iterator ();
+
+    while ((bytes > maxBytes) && it.hasNext ()) {
+      bytes -= it.next ().getValue ().sizeInBytes ();
+      it.remove ();
+      evictions ++;
+    }
+  }
+
+  /**
+   *  Get a description of the cache's size and hit, miss, and eviction
+   *  counts.
+   *  @return A one-line description.
+   */
+  public static synchronized String getStats () {
+    return ("hits " + hits + ", misses " + misses +
+	    ", evictions " + evictions + ", lists " + lists.size () +
+	    ", " + (bytes / 1024) + " KB of " + (maxBytes / 1024) + " KB");
+  }
+
+  /**
+   *  Discard all cached lists.  The statistics are not reset.
+   */
+  public static synchronized void clear () {
+    lists.clear ();
+    bytes = 0;
+  }
+
+  /**
+   *  Set the bound on the size of the cache.  0 disables the cache.
+   *  @param n The maximum number of bytes of cached lists.
+   *  @throws IllegalArgumentException n is negative.
+   */
+  public static synchronized void setMaxBytes (long n) {
+
+    if (n < 0) {
+      throw new IllegalArgumentException
+	("The inverted list cache size must be >= 0.");
+    }
+
+    maxBytes = n;
+    evict ();
+  }
+}
@@ -57,8 +57,10 @@ import java.util.*;
  *  materialized when the query operator is initialized.  It is not
  *  possible to produce them in a document-at-a-time mode because
  *  the df and ctf statistics are not known until the inverted list
- *  is fully constructed.  QryIop operators provide a document-at-a-time
- *  interface to the inverted lists via docIterators.
+ *  is fully constructed.  The exception is TERM, whose df and ctf are
+ *  index statistics; it streams its postings from the index.  QryIop
+ *  operators provide a document-at-a-time interface to the inverted
+ *  lists via docIterators.
  *  </p><p>
  *  The data structure that stores query arguments (args) is accessible
  *  by subclasses.  If it is accessed via a standard Java iterator, the
@@ -98,6 +100,12 @@ public abstract class Qry {
    */
   private int docIteratorMatchCache = Qry.INVALID_DOCID;
   
+  /**
+   *  The argument that leads docIteratorHasMatchAll, i.e., the one
+   *  with the lowest docIteratorCost, or -1 if it isn't chosen yet.
+   */
+  private int docIteratorLeadArg = -1;
+
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
@@ -214,6 +222,19 @@ public abstract class Qry {
     this.docIteratorClearMatchCache ();
   }
 
+  /**
+   *  Decide which inverted lists in the query tree need positions.
+   *  Score operators use only document ids and term frequencies, so by
+   *  default the arguments don't need positions.  QryIop overrides this.
+   *  @param positions Does the parent need positions from this operator?
+   */
+  public void planPostings (boolean positions) {
+
+    for (Qry q_i: this.args) {
+      q_i.planPostings (false);
+    }
+  }
+
   /**
    *  Clear the docIterator's matching docid cache.  The cache should
    *  be cleared whenever a docIterator is advanced.
@@ -223,6 +244,25 @@ public abstract class Qry {
     this.docIteratorMatchCache = Qry.INVALID_DOCID;
   }
 
+  /**
+   *  An estimate of the number of documents that the docIterator
+   *  visits.  It is used to choose the order in which arguments are
+   *  intersected, so it need not be exact.  The default is the sum of
+   *  the arguments' costs.  It is an error to call this method before
+   *  the object's initialize method is called.
+   *  @return The estimated number of documents.
+   */
+  public long docIteratorCost () {
+
+    long cost = 0;
+
+    for (Qry q_i: this.args) {
+      cost += q_i.docIteratorCost ();
+    }
+
+    return cost;
+  }
+
   /**
    *  Return the id of the document that the iterator points to now.
    *  Use docIteratorHasMatch to determine whether the iterator
@@ -256,13 +296,31 @@ public abstract class Qry {
 
     boolean foundMatch = false;
 
+    // The argument with the shortest list leads, and the others
+    // advance to its documents.  Each advance skips (sub-linearly)
+    // over documents that can't match, so the cost is driven by the
+    // shortest list rather than the longest.
+
+    if (this.docIteratorLeadArg < 0) {
+      this.docIteratorLeadArg = 0;
+
+      for (int i=1; i<this.args.size(); i++) {
+        if (this.args.get(i).docIteratorCost () <
+            this.args.get(this.docIteratorLeadArg).docIteratorCost ()) {
+          this.docIteratorLeadArg = i;
+        }
+      }
+    }
+
+    int lead = this.docIteratorLeadArg;
+
     // Keep trying until a match is found or no match is possible.
 
     while (! foundMatch) {
 
-      // Get the docid of the first query argument.
+      // Get the docid of the lead query argument.
       
-      Qry q_0 = this.args.get (0);
+      Qry q_0 = this.args.get (lead);
 
       if (! q_0.docIteratorHasMatch (r)) {
 	      return false;
@@ -270,12 +328,15 @@ public abstract class Qry {
 
       int docid_0 = q_0.docIteratorGetMatch ();
 
-      // Other query arguments must match the docid of the first query
+      // Other query arguments must match the docid of the lead query
       // argument.
       
       foundMatch = true;
 
-      for (int i=1; i<this.args.size(); i++) {
+      for (int i=0; i<this.args.size(); i++) {
+	    if (i == lead)
+	      continue;
+
 	    Qry q_i = this.args.get(i);
 
 	    q_i.docIteratorAdvanceTo (docid_0);
@@ -416,6 +477,29 @@ public abstract class Qry {
     this.displayName = new String (name);
   }
 
+  /**
+   *  Get a canonical string version of this query operator, e.g., to
+   *  identify its results in a cache (see ResultCache).  Unlike
+   *  toString, it includes the weights of weighted operators, and the
+   *  operator name is lower-cased, so two queries have the same
+   *  canonical string only if they have the same results.
+   *  @return The canonical string version of this query operator.
+   */
+  public String toCanonicalString () {
+
+    StringBuilder result = new StringBuilder (this.displayName.toLowerCase ());
+
+    if (this.weights != null)
+      result.append (this.weights);
+
+    result.append ("( ");
+
+    for (Qry q_i : this.args)
+      result.append (q_i.toCanonicalString ()).append (' ');
+
+    return result.append (")").toString ();
+  }
+
   /**
    *  Get a string version of this query operator.  This is a generic
    *  method that works for most query operators.  However, some query
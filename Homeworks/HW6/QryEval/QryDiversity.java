@@ -41,34 +41,43 @@ public class QryDiversity {
             String prevQid = null;
             ScoreList tmp = new ScoreList();
 
+            List<String[]> rows = new ArrayList<>();
+            List<String> externalIds = new ArrayList<>();
+
             while ((qLine = input.readLine()) != null) {
 
                 String[] tokens = qLine.split(" ");
                 if (tokens[0].equals(qid) || tokens[0].startsWith(qid+".")) {
+                    rows.add(tokens);
+                    externalIds.add(tokens[2]);
+                }
+            }
 
-                    if (tokens[0].startsWith(qid+".")) {
-                        subqids.add(tokens[0]);
-                    }
-                    if (prevQid != null && !tokens[0].equals(prevQid)) {
-                        scoresLists.put(prevQid, tmp);
-                        tmp = new ScoreList();
-                    }
-                    int docid = -1;
-                    try {
-                        docid = Idx.getInternalDocid(tokens[2]);
-                        if (!tokens[2].equals(Idx.getExternalDocid(docid))){
-                            System.out.println(tokens[2]);
-                            System.out.println(docid);
-                            System.out.println(Idx.getExternalDocid(docid));
-                            System.out.println("======docid error ======");
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    double score = Double.parseDouble(tokens[4]);
-                    tmp.add(docid, score);
-                    prevQid = tokens[0];
+            // Resolve every external id at once
+            int[] docids;
+            try {
+                docids = Idx.getInternalDocids(externalIds);
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+
+            for (int i=0;i<rows.size();i++) {
+                String[] tokens = rows.get(i);
+
+                if (tokens[0].startsWith(qid+".")) {
+                    subqids.add(tokens[0]);
+                }
+                if (prevQid != null && !tokens[0].equals(prevQid)) {
+                    scoresLists.put(prevQid, tmp);
+                    tmp = new ScoreList();
+                }
+                if (docids[i] < 0) {
+                    System.out.println(tokens[2]);
+                    System.out.println("======docid error ======");
                 }
+                double score = Double.parseDouble(tokens[4]);
+                tmp.add(docids[i], score);
+                prevQid = tokens[0];
             }
             if (prevQid != null) {
                 scoresLists.put(prevQid, tmp);
@@ -82,13 +91,13 @@ public class QryDiversity {
                 System.out.println(Arrays.toString(tokens));
                 if (tokens[0].startsWith(qid + ".")) {
                     subqids.add(tokens[0]);
-                    scoresLists.put(tokens[0], QryEval.processQuery(tokens[1], model));
+                    scoresLists.put(tokens[0], QryEval.processQuery(tokens[1], model, maxInputRankingsLength));
                 }
             }
             input.close();
         }
         if (! scoresLists.containsKey(qid)) {
-            scoresLists.put(qid, QryEval.processQuery(query, model));
+            scoresLists.put(qid, QryEval.processQuery(query, model, maxInputRankingsLength));
         }
         for (ScoreList tmp:scoresLists.values()) {
             tmp.sort();
@@ -133,9 +142,19 @@ public class QryDiversity {
     }
 
     public ScoreList processQuery(String qid, String query, RetrievalModel model)
+        throws IOException {
+        return processQuery(qid, query, model, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Process one query, diversifying the results if diversity is enabled.
+     * @param k The maximum number of documents to return if diversity is
+     *          disabled.  Diversification uses maxInputRankingsLength.
+     */
+    public ScoreList processQuery(String qid, String query, RetrievalModel model, int k)
         throws IOException {
         if (! isDiversity) {
-            return QryEval.processQuery(query, model);
+            return QryEval.processQuery(query, model, k);
         }
 
         Map<String, ScoreList> scoresLists = new HashMap<>();
@@ -6,6 +6,7 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  *  This software illustrates the architectrue for the portion of a
@@ -22,6 +23,19 @@ public class QryEval {
   private static final String USAGE =
     "Usage:  java QryEval paramFile\n\n";
 
+  /**
+   *  Are queries scored by compiled plans (see QryPlan) rather than by
+   *  the query tree?  The scores are the same; the parameter
+   *  compileQueries=false is for comparisons.
+   */
+  private static boolean compileQueries = true;
+
+  /**
+   *  Per-thread console buffers (see redirectConsole).
+   */
+  private static final ThreadLocal<ByteArrayOutputStream> consoleBuffer =
+    new ThreadLocal<ByteArrayOutputStream>();
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -41,7 +55,33 @@ public class QryEval {
 
     Idx.open (parameters.get ("indexPath"));
 
+    if (parameters.containsKey ("invListCache:maxBytes")) {
+      InvListCache.setMaxBytes
+        (Long.parseLong (parameters.get ("invListCache:maxBytes")));
+    }
+
+    if (parameters.containsKey ("resultCache:maxBytes")) {
+      ResultCache.setMaxBytes
+        (Long.parseLong (parameters.get ("resultCache:maxBytes")));
+    }
+
+    String resultCachePath = parameters.get ("resultCache:path");
 
+    boolean saveResultCache = (resultCachePath != null);
+
+    if (saveResultCache)
+      ResultCache.load (resultCachePath);
+
+    if (parameters.containsKey ("compileQueries")) {
+      compileQueries =
+        Boolean.parseBoolean (parameters.get ("compileQueries"));
+    }
+
+    if (parameters.containsKey ("queryParallelism")) {
+      QryEvalParallel.setParallelism
+        (Integer.parseInt (parameters.get ("queryParallelism")),
+         parameters.getOrDefault ("queryPartition", "leaf"));
+    }
 
     if (parameters.get("rerank")!=null &&
             parameters.get("rerank").toLowerCase().equals("true")) {
@@ -51,10 +91,22 @@ public class QryEval {
       new RetrievalModelLeToR(parameters);
     } else {
       RetrievalModel model = initializeRetrievalModel (parameters);
-      processQueryFile(parameters, model);
+      if (parameters.containsKey ("server:port")) {
+        new QryServer (parameters, model).run ();
+        saveResultCache = false;	// QryServer.run saved it
+      } else {
+        processQueryFile(parameters, model);
+      }
     }
 
+    QryEvalParallel.shutdown ();
+
+    if (saveResultCache)
+      ResultCache.save (resultCachePath);
+
     timer.stop ();
+    System.out.println ("InvList cache:  " + InvListCache.getStats ());
+    System.out.println ("Result cache:  " + ResultCache.getStats ());
     System.out.println ("Time:  " + timer);
   }
 
@@ -117,6 +169,22 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery (qString, model, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Process one query, keeping only the k best documents.  The results
+   * are collected in a bounded heap (see ScoreListTopK), so they are
+   * already sorted.  Queries that were evaluated before may be
+   * answered by the result cache (see ResultCache).
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The maximum number of documents to return.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
 
     String defaultOp = model.defaultQrySopName ();
     qString = defaultOp + "(" + qString + ")";
@@ -127,24 +195,114 @@ public class QryEval {
     System.out.println("    --> " + q);
     
     if (q != null) {
-      ScoreList results = new ScoreList ();
+
+      //  Repeated queries are answered from the result cache, unless
+      //  they are evaluated score-at-a-time with a time budget, whose
+      //  results depend on timing.
+
+      boolean saat = (q.args.size () > 0) && QryEvalSaat.supports (q, model);
+      boolean timed = saat && (((RetrievalModelBM25) model).saatMaxMillis > 0);
+      String key = (ResultCache.isEnabled () && ! timed) ?
+        ResultCache.getKey (q, model) : null;
+
+      if (key != null) {
+        ScoreList cached = ResultCache.get (key, k);
+
+        if (cached != null) {
+          System.out.println("    Docs scored:  0 (cached)");
+          return cached;
+        }
+      }
+
+      ScoreListTopK results = new ScoreListTopK (k);
+      long scored = 0;
       if (q.args.size () > 0) {		// Ignore empty queries
-        q.initialize (model);
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          results.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+        if (saat) {
+          scored = QryEvalSaat.evaluate (q, (RetrievalModelBM25) model, results);
+        } else {
+          q.initialize (model);
+          scored = evaluate (qString, q, model, results, k);
         }
       }
 
-      return results;
+      System.out.println("    Docs scored:  " + scored);
+
+      ScoreList list = results.getScoreList ();
+
+      if (key != null)
+        ResultCache.put (key, k, list);
+
+      return list;
     } else
       return null;
   }
 
   /**
-   *  Process the query file.
+   *  Evaluate an initialized query exactly, using dynamic pruning or
+   *  term-at-a-time evaluation when the query allows them, or parallel
+   *  partitions of the docid space when they are enabled.
+   *  @param qString The query string that q was parsed from.
+   *  @param q The query.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param results The top k collector.
+   *  @param k The number of documents to keep.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the index
+   */
+  private static long evaluate (String qString, Qry q, RetrievalModel model,
+                                ScoreListTopK results, int k)
+    throws IOException {
+
+    if (QryEvalWand.supports (q, model)) {
+      return QryEvalWand.evaluate (q, (RetrievalModelBM25) model, results);
+    } else if (QryEvalTaat.supports (q, model)) {
+      return QryEvalTaat.evaluate (q, model, results);
+    } else if (QryEvalParallel.isEnabled ()) {
+      return QryEvalParallel.evaluate (qString, q, model, results, k);
+    }
+
+    return evaluateRange (q, model, results, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Evaluate an initialized query document-at-a-time over a range of
+   *  docids.
+   *  @param q The query, not yet iterated.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param results The top k collector.
+   *  @param minDocid The first docid of the range.
+   *  @param maxDocid The docid after the end of the range.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the index
+   */
+  static long evaluateRange (Qry q, RetrievalModel model, ScoreListTopK results,
+                             int minDocid, int maxDocid)
+    throws IOException {
+
+    QryPlan plan = (compileQueries) ? QryPlan.compile (q, model) : null;
+    long scored = 0;
+
+    if (minDocid > 0)
+      q.docIteratorAdvanceTo (minDocid);
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+      if (docid >= maxDocid)
+        break;
+      double score = (plan != null) ?
+        plan.getScore (docid) : ((QrySop) q).getScore (model);
+      results.add (docid, score);
+      scored ++;
+      q.docIteratorAdvancePast (docid);
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Process the query file.  If the numThreads parameter is greater
+   *  than 1, queries are evaluated in parallel, and their results are
+   *  written in query file order, so the output is the same.
    *  @param params Params
    *  @param model A retrieval model that will guide matching and scoring
    *  @throws IOException Error accessing the Lucene index.
@@ -154,6 +312,7 @@ public class QryEval {
       throws IOException {
     QryExpand expander = new QryExpand(params);
     QryDiversity diversity = new QryDiversity(params);
+    int numThreads = Integer.parseInt(params.getOrDefault("numThreads", "1"));
 
     BufferedReader input = null;
     File output = new File(params.get("trecEvalOutputPath"));
@@ -161,30 +320,22 @@ public class QryEval {
       if (output.exists()) output.delete();
       output.createNewFile();
 
-      String qLine = null;
       input = new BufferedReader(new FileReader(params.get("queryFilePath")));
 
+      if (numThreads > 1) {
+        processQueryLines(input, params, model, expander, diversity, numThreads);
+        return;
+      }
+
+      String qLine = null;
+
       //  Each pass of the loop processes one query.
       while ((qLine = input.readLine()) != null) {
-        qLine = expander.expand(qLine, model.defaultQrySopName());
-        printMemoryUsage(false);
-        System.out.println("Query " + qLine);
-    	String[] pair = qLine.split(":");
-
-        if (pair.length != 2) {
-              throw new IllegalArgumentException
-                ("Syntax error:  Each line must contain one ':'.");
-        }
+        String[] out = processQueryLine(qLine, params, model, expander, diversity);
 
-        String qid = pair[0];
-        String query = pair[1];
-//        ScoreList results = processQuery(query, model);
-        ScoreList results = diversity.processQuery(qid, query, model);
-
-        if (results != null) {
-          results.sort();
-          printResults(qid, results, params);
-          System.out.println();
+        expander.writeExpansion(out[0]);
+        if (out[1] != null) {
+          writeResults(out[1], params);
         }
       }
     } catch (IOException ex) {
@@ -195,11 +346,213 @@ public class QryEval {
   }
 
   /**
-   * Print the query results.
-   * 
-   * STUDENTS:: 
-   * This is not the correct output format. You must change this method so
-   * that it outputs in the format specified in the homework page, which is:
+   *  Process one line of the query file:  expand the query, evaluate
+   *  it, and format its results.  Each query has its own query tree,
+   *  and the expander and diversity objects have no per-query state,
+   *  so several threads can process lines at once.
+   *  @param qLine A line of the query file.
+   *  @param params Params
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param expander The query expander.
+   *  @param diversity The result diversifier.
+   *  @return The line(s) for the expansion query file (or ""), and the
+   *  results in trec_eval format (or null).
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static String[] processQueryLine(String qLine,
+                                           Map<String, String> params,
+                                           RetrievalModel model,
+                                           QryExpand expander,
+                                           QryDiversity diversity)
+      throws IOException {
+    StringBuilder expansion = new StringBuilder();
+    qLine = expander.expand(qLine, model.defaultQrySopName(), expansion);
+    ScoreList results = evaluateQueryLine(qLine, params, model, diversity);
+    String rows = null;
+
+    if (results != null) {
+      rows = formatResults(qLine.split(":")[0], results, params);
+      System.out.print(rows);
+      System.out.println();
+    }
+
+    return new String[] { expansion.toString(), rows };
+  }
+
+  /**
+   *  Evaluate one (expanded) query line.
+   *  @param qLine A query line, qid:query.
+   *  @param params Params
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param diversity The result diversifier.
+   *  @return The sorted results, or null if the query is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static ScoreList evaluateQueryLine(String qLine,
+                                     Map<String, String> params,
+                                     RetrievalModel model,
+                                     QryDiversity diversity)
+      throws IOException {
+    printMemoryUsage(false);
+    System.out.println("Query " + qLine);
+    String[] pair = qLine.split(":");
+
+    if (pair.length != 2) {
+      throw new IllegalArgumentException
+        ("Syntax error:  Each line must contain one ':'.");
+    }
+
+    String qid = pair[0];
+    String query = pair[1];
+    ScoreList results = diversity.processQuery(qid, query, model,
+        Integer.parseInt(params.get("trecEvalOutputLength")));
+
+    if (results != null) {
+      results.sort();
+    }
+
+    return results;
+  }
+
+  /**
+   *  Process the lines of the query file on a pool of worker threads.
+   *  The main thread writes each query's results, and prints its
+   *  console output, in query file order.
+   *  @param input The query file.
+   *  @param params Params
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param expander The query expander.
+   *  @param diversity The result diversifier.
+   *  @param numThreads The number of worker threads.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void processQueryLines(BufferedReader input,
+                                        Map<String, String> params,
+                                        RetrievalModel model,
+                                        QryExpand expander,
+                                        QryDiversity diversity,
+                                        int numThreads)
+      throws IOException {
+
+    //  Each worker's console output goes to a per-query buffer.
+
+    PrintStream console = redirectConsole();
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+    try {
+      List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+      List<String[]> logs = new ArrayList<String[]>();
+      String qLine = null;
+
+      while ((qLine = input.readLine()) != null) {
+        String line = qLine;
+        String[] log = new String[1];
+
+        logs.add(log);
+        futures.add(pool.submit(() -> {
+          startConsoleBuffer();
+          try {
+            return processQueryLine(line, params, model, expander, diversity);
+          } finally {
+            log[0] = endConsoleBuffer();
+          }
+        }));
+      }
+
+      //  A query's console output is printed even if it failed, so
+      //  that its diagnostics aren't lost.
+
+      for (int i = 0; i < futures.size(); i++) {
+        String[] out;
+
+        try {
+          out = getResult(futures.get(i));
+        } finally {
+          String log = logs.get(i)[0];
+          if (log != null) console.print(log);
+        }
+
+        expander.writeExpansion(out[0]);
+        if (out[1] != null) {
+          writeResults(out[1], params);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+      System.setOut(console);
+    }
+  }
+
+  /**
+   *  Route System.out through per-thread buffers, so that the console
+   *  output of concurrent queries isn't interleaved.  Between
+   *  startConsoleBuffer and endConsoleBuffer, a thread's output goes to
+   *  its buffer; otherwise it goes to the console.
+   *  @return The console.  The caller restores it with System.setOut.
+   */
+  static PrintStream redirectConsole() {
+    PrintStream console = System.out;
+
+    System.setOut(new PrintStream(new OutputStream() {
+        public void write(int b) {
+          ByteArrayOutputStream buffer = consoleBuffer.get();
+          if (buffer != null) buffer.write(b); else console.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+          ByteArrayOutputStream buffer = consoleBuffer.get();
+          if (buffer != null) buffer.write(b, off, len); else console.write(b, off, len);
+        }
+      }, true));
+
+    return console;
+  }
+
+  /**
+   *  Start buffering the current thread's console output (see
+   *  redirectConsole).
+   */
+  static void startConsoleBuffer() {
+    consoleBuffer.set(new ByteArrayOutputStream());
+  }
+
+  /**
+   *  Stop buffering the current thread's console output.
+   *  @return The buffered output, or "" if there is none.
+   */
+  static String endConsoleBuffer() {
+    ByteArrayOutputStream buffer = consoleBuffer.get();
+    consoleBuffer.remove();
+    return (buffer == null) ? "" : buffer.toString();
+  }
+
+  /**
+   *  Wait for a task's result, rethrowing the worker's exception if
+   *  it failed.
+   *  @param future The task's result.
+   *  @return The result.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while evaluating queries.", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
+  /**
+   * Format the query results.
    * 
    * QueryID Q0 DocID Rank Score RunID
    * 
@@ -207,27 +560,47 @@ public class QryEval {
    *          Original query.
    * @param result
    *          A list of document ids and scores
+   * @param params Params
+   * @return The results, one line per document.
    * @throws IOException Error accessing the Lucene index.
    */
-  static void printResults(String queryName, ScoreList result, Map<String, String> params)
+  static String formatResults(String queryName, ScoreList result, Map<String, String> params)
           throws IOException {
     int number = Integer.parseInt(params.get("trecEvalOutputLength"));
-    BufferedWriter output = new BufferedWriter(
-            new FileWriter(params.get("trecEvalOutputPath"), true));
 
     String format = "%s Q0 %s %d %.18f reference\n";
     StringBuilder sb = new StringBuilder();
     if (result.size() < 1) {
       sb.append(String.format(format, queryName, "dummy", 1, 0.0));
     } else {
-      for (int i = 0; i < Math.min(number, result.size()); i++) {
+      //  Only the rows that are written need external ids.
+
+      int[] docids = new int[Math.min(number, result.size())];
+      for (int i = 0; i < docids.length; i++) {
+        docids[i] = result.getDocid(i);
+      }
+      String[] externalIds = Idx.getExternalDocids(docids);
+
+      for (int i = 0; i < docids.length; i++) {
         sb.append(String.format(format, queryName,
-                Idx.getExternalDocid(result.getDocid(i)),
+                externalIds[i],
                 i+1, result.getDocidScore(i)));
       }
     }
-    System.out.print(sb.toString());
-    output.write(sb.toString());
+    return sb.toString();
+  }
+
+  /**
+   * Append formatted results to the trec_eval output file.
+   * @param rows The results (see formatResults).
+   * @param params Params
+   * @throws IOException Error writing the file.
+   */
+  static void writeResults(String rows, Map<String, String> params)
+          throws IOException {
+    BufferedWriter output = new BufferedWriter(
+            new FileWriter(params.get("trecEvalOutputPath"), true));
+    output.write(rows);
     output.close();
   }
 
@@ -0,0 +1,200 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  Segment-parallel evaluation of one query.  The docid space is
+ *  divided into partitions, either one per Lucene leaf
+ *  (Idx.INDEXREADER.leaves) or into equal docid ranges, and each
+ *  partition is evaluated document-at-a-time by its own copy of the
+ *  query tree on a ForkJoinPool.  Each partition keeps its own top k
+ *  documents, and the lists are merged into the query's results.
+ *  <p>
+ *  Query trees are not thread-safe (each operator has an iterator), so
+ *  the first partition uses the query that processQuery initialized,
+ *  and the others parse and initialize their own copies.  Operators
+ *  that materialized an inverted list when the query was initialized
+ *  (e.g., #NEAR, #WINDOW, and #SYN for the statistical models) share
+ *  it with their copies (see QryIop.shareList), so each list is built
+ *  once, not once per partition.  df, ctf, and the field lengths come
+ *  from the whole index (see Idx), and shared lists are index-wide,
+ *  so every document gets the score of single-threaded evaluation,
+ *  and the merged top k is the same.
+ *  </p><p>
+ *  QryEval.processQuery uses it when the queryParallelism parameter is
+ *  greater than 1 and the query isn't evaluated by SAAT, WAND, or TAAT,
+ *  which read each posting list once and gain little from partitions.
+ *  queryPartition is "leaf" (the default) or "range".
+ *  </p>
+ */
+public class QryEvalParallel {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static ForkJoinPool pool = null;
+  private static int parallelism = 1;
+  private static boolean byLeaf = true;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the number of threads and how the docid space is divided.
+   *  @param numThreads The number of threads; 1 disables partitions.
+   *  @param partition "leaf" or "range".
+   *  @throws IllegalArgumentException Bad parameter values.
+   */
+  public static synchronized void setParallelism (int numThreads, String partition) {
+
+    if (numThreads < 1) {
+      throw new IllegalArgumentException
+	("queryParallelism must be at least 1.");
+    }
+
+    if (! (partition.equals ("leaf") || partition.equals ("range"))) {
+      throw new IllegalArgumentException
+	("Unknown queryPartition " + partition + ".  Use leaf or range.");
+    }
+
+    if (pool != null) {
+      pool.shutdown ();
+      pool = null;
+    }
+
+    parallelism = numThreads;
+    byLeaf = partition.equals ("leaf");
+
+    if (numThreads > 1)
+      pool = new ForkJoinPool (numThreads);
+  }
+
+  /**
+   *  Is segment-parallel evaluation enabled?
+   *  @return True if queries may be evaluated in partitions.
+   */
+  public static boolean isEnabled () {
+    return pool != null;
+  }
+
+  /**
+   *  Shut down the thread pool.
+   */
+  public static synchronized void shutdown () {
+
+    if (pool != null) {
+      pool.shutdown ();
+      pool = null;
+    }
+  }
+
+  /**
+   *  Get the partitions of the docid space.
+   *  @return Pairs of {first docid, last docid + 1}.
+   */
+  private static ArrayList<int[]> getPartitions () {
+
+    ArrayList<int[]> partitions = new ArrayList<int[]> ();
+
+    if (byLeaf) {
+      for (LeafReaderContext leaf : Idx.INDEXREADER.leaves ()) {
+	int maxDoc = leaf.reader ().maxDoc ();
+
+	if (maxDoc > 0)
+	  partitions.add (new int[] { leaf.docBase, leaf.docBase + maxDoc });
+      }
+    } else {
+      long maxDoc = Idx.INDEXREADER.maxDoc ();
+
+      for (int i = 0; i < parallelism; i++) {
+	int start = (int) (maxDoc * i / parallelism);
+	int end = (int) (maxDoc * (i + 1) / parallelism);
+
+	if (end > start)
+	  partitions.add (new int[] { start, end });
+      }
+    }
+
+    return partitions;
+  }
+
+  /**
+   *  Give a copy of a query the inverted lists that the query's
+   *  operators materialized when the query was initialized.
+   *  @param q The initialized query.
+   *  @param copy A copy of q, parsed from the same string.
+   */
+  private static void shareLists (Qry q, Qry copy) {
+
+    if ((q instanceof QryIop) && (! (q instanceof QryIopTerm))) {
+      ((QryIop) copy).shareList ((QryIop) q);
+      return;
+    }
+
+    for (int i = 0; i < q.args.size (); i++)
+      shareLists (q.args.get (i), copy.args.get (i));
+  }
+
+  /**
+   *  Evaluate a query in parallel partitions.  isEnabled must be true.
+   *  @param qString The query string that q was parsed from.
+   *  @param q The query, initialized and not yet iterated.
+   *  @param r The retrieval model.
+   *  @param results The top k collector.
+   *  @param k The number of documents to keep.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (String qString, Qry q, RetrievalModel r,
+			       ScoreListTopK results, int k)
+    throws IOException {
+
+    ArrayList<int[]> partitions = getPartitions ();
+    ArrayList<Callable<ScoreListTopK>> tasks =
+      new ArrayList<Callable<ScoreListTopK>> ();
+    long[] scored = new long [partitions.size ()];
+
+    for (int i = 0; i < partitions.size (); i++) {
+      final int p = i;
+      final int[] range = partitions.get (i);
+
+      //  Copies are linked to q's lists before any partition starts
+      //  to iterate q.
+
+      final Qry q_p = (p == 0) ? q : QryParser.getQuery (qString);
+
+      if (p > 0)
+	shareLists (q, q_p);
+
+      tasks.add (() -> {
+	  if (p > 0)
+	    q_p.initialize (r);
+
+	  ScoreListTopK top = new ScoreListTopK (k);
+	  scored [p] = QryEval.evaluateRange (q_p, r, top, range [0], range [1]);
+	  return top;
+	});
+    }
+
+    //  Merge the partitions' top k.  Ties are broken by external id
+    //  (see ScoreListTopK), so the order of the merge doesn't matter.
+
+    long total = 0;
+    List<Future<ScoreListTopK>> futures = pool.invokeAll (tasks);
+
+    for (int i = 0; i < futures.size (); i++) {
+      ScoreList top = QryEval.getResult (futures.get (i)).getScoreList ();
+
+      for (int j = 0; j < top.size (); j++)
+	results.add (top.getDocid (j), top.getDocidScore (j));
+
+      total += scored [i];
+    }
+
+    return total;
+  }
+
+}
@@ -0,0 +1,178 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Score-at-a-time (SAAT) evaluation of BM25 queries over an
+ *  impact-ordered index (see IdxImpacts).  The segments of every query
+ *  term are read in descending impact order, so the postings that
+ *  contribute the most to the document scores are read first, and
+ *  their impacts are added to an accumulator indexed by docid.
+ *  Evaluation stops when every segment is read or when the postings
+ *  or time budget is spent (see RetrievalModelBM25.saatMaxPostings
+ *  and saatMaxMillis); the ranking of the accumulator at that point
+ *  is the best ranking found so far.
+ *  <p>
+ *  The results are approximate even without a budget:  document
+ *  scores are sums of quantized impacts, so documents whose BM25
+ *  scores are close may be ranked differently than by exact
+ *  evaluation.
+ *  </p><p>
+ *  QryEval.processQuery uses SAAT when it is enabled (BM25:saat) for
+ *  BM25 #SUM queries of terms, and for one-term queries.  Other
+ *  queries are evaluated exactly.
+ *  </p>
+ */
+public class QryEvalSaat {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  /**
+   *  The number of postings read between checks of the time budget.
+   */
+  private static final int CLOCK_INTERVAL = 1024;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query score-at-a-time.  The query does not need to be
+   *  initialized, and supports (q, r) must be true.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param results The top k collector.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (Qry q, RetrievalModelBM25 r, ScoreListTopK results)
+    throws IOException {
+
+    IdxImpacts impacts = Idx.getImpacts ();
+    List<Qry> terms = (q instanceof QrySopScore) ?
+      Collections.singletonList (q) : q.args;
+
+    //  Gather the segments of every term, highest impact first.  Ties
+    //  are read in argument order.
+
+    ArrayList<Integer> segments = new ArrayList<Integer> ();
+
+    for (Qry q_i : terms) {
+      QryIopTerm term = (QryIopTerm) q_i.args.get (0);
+      int[] termSegments = impacts.getSegments (term.getField (), term.getTerm ());
+
+      if (termSegments != null) {
+	for (int segment : termSegments)
+	  segments.add (segment);
+      }
+    }
+
+    segments.sort ((s1, s2) -> Integer.compare (impacts.getSegmentImpact (s2),
+						impacts.getSegmentImpact (s1)));
+
+    //  Accumulate impacts until the segments or the budget run out.
+    //  scores[d] is 1 + the sum of document d's impacts, so 0 means
+    //  that d hasn't been seen.
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    int numPages = (maxDoc + PAGE_SIZE - 1) >>> PAGE_BITS;
+    int[][] scores = new int [numPages][];
+    long budget = (r.saatMaxPostings > 0) ? r.saatMaxPostings : Long.MAX_VALUE;
+    long deadline = System.nanoTime () + r.saatMaxMillis * 1000000L;
+    long read = 0;
+
+  segmentLoop:
+    for (int segment : segments) {
+      int impact = impacts.getSegmentImpact (segment);
+      int n = impacts.getSegmentLength (segment);
+
+      for (int i = 0; i < n; i++) {
+	if ((read >= budget) ||
+	    ((r.saatMaxMillis > 0) && (read % CLOCK_INTERVAL == 0) &&
+	     (System.nanoTime () - deadline >= 0))) {
+	  break segmentLoop;
+	}
+
+	int docid = impacts.getSegmentDocid (segment, i);
+	int page = docid >>> PAGE_BITS;
+
+	if (scores [page] == null)
+	  scores [page] = new int [PAGE_SIZE];
+
+	scores [page][docid & PAGE_MASK] += (scores [page][docid & PAGE_MASK] == 0) ?
+	  impact + 1 : impact;
+	read ++;
+      }
+    }
+
+    //  Select the top k.
+
+    double scale = impacts.getScale ();
+    long scored = 0;
+
+    for (int page = 0; page < numPages; page++) {
+      if (scores [page] == null)
+	continue;
+
+      for (int offset = 0; offset < PAGE_SIZE; offset++) {
+	if (scores [page][offset] > 0) {
+	  results.add ((page << PAGE_BITS) | offset,
+		       (scores [page][offset] - 1) * scale);
+	  scored ++;
+	}
+      }
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Can a query be evaluated score-at-a-time?
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if evaluate can be used.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) throws IOException {
+
+    if (! ((r instanceof RetrievalModelBM25) && ((RetrievalModelBM25) r).saat))
+      return false;
+
+    IdxImpacts impacts = Idx.getImpacts ();
+
+    if (impacts == null)
+      return false;
+
+    List<Qry> terms;
+
+    if (q instanceof QrySopScore) {
+      terms = Collections.singletonList (q);
+    } else if ((q instanceof QrySopSum) && (q.args.size () > 0)) {
+      terms = q.args;
+    } else {
+      return false;
+    }
+
+    //  Every term of the field is in the impact index, so a term that
+    //  isn't must not occur in the field, or the field wasn't indexed.
+
+    for (Qry q_i : terms) {
+      if (! ((q_i instanceof QrySopScore) &&
+	     (q_i.args.get (0) instanceof QryIopTerm)))
+	return false;
+
+      QryIopTerm term = (QryIopTerm) q_i.args.get (0);
+
+      if ((! impacts.contains (term.getField (), term.getTerm ())) &&
+	  (Idx.getDocFreq (term.getField (), term.getTerm ()) > 0))
+	return false;
+    }
+
+    return true;
+  }
+
+}
@@ -0,0 +1,172 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Term-at-a-time (TAAT) evaluation of short, flat queries.
+ *  Document-at-a-time evaluation moves every argument through the
+ *  Qry docIterator interface for each document, which is a chain of
+ *  virtual calls per argument per document.  For a query with a few
+ *  terms it is cheaper to read each argument's postings in one pass,
+ *  adding its scores to an accumulator indexed by docid, and then to
+ *  select the top k documents from the accumulator.
+ *  <p>
+ *  QryEval.processQuery uses TAAT automatically for these queries
+ *  (see supports):
+ *  </p>
+ *  <ul>
+ *  <li>A single SCORE operator (a one-term query), any model.
+ *  <li>BM25 #SUM and #WSUM of at most MAX_ARGS SCORE operators, when
+ *      dynamic pruning is off.  BM25 #WSUM matches only documents that
+ *      match all of its arguments (see QrySopWSum).
+ *  <li>Boolean #OR of at most MAX_ARGS SCORE operators.
+ *  </ul>
+ *  <p>
+ *  The accumulator is paged:  a page of PAGE_SIZE documents is
+ *  allocated when one of its documents gets a posting, so memory is
+ *  proportional to the documents that match, not to the corpus.
+ *  Scores are doubles, and arguments are added in argument order, so
+ *  each score is exactly the score of document-at-a-time evaluation.
+ *  </p>
+ */
+public class QryEvalTaat {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The maximum number of query arguments.  Longer queries benefit
+   *  more from document-at-a-time evaluation and dynamic pruning.
+   */
+  public static final int MAX_ARGS = 3;
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query term-at-a-time.  The query must be initialized,
+   *  and supports (q, r) must be true.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param results The top k collector.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (Qry q, RetrievalModel r, ScoreListTopK results)
+    throws IOException {
+
+    //  A single SCORE operator is scored as its postings are read.
+
+    if (q instanceof QrySopScore) {
+      QrySopScore score = (QrySopScore) q;
+      QryIop iop = (QryIop) q.args.get (0);
+      long scored = 0;
+
+      while (iop.docIteratorHasMatch (r)) {
+	int docid = iop.docIteratorGetMatch ();
+	results.add (docid, score.getPostingScore (r, docid,
+						   iop.docIteratorGetMatchTf ()));
+	scored ++;
+	iop.docIteratorAdvancePast (docid);
+      }
+
+      return scored;
+    }
+
+    //  Accumulate each argument's scores.  counts[d] is the number of
+    //  arguments that match document d.
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    int numPages = (maxDoc + PAGE_SIZE - 1) >>> PAGE_BITS;
+    double[][] scores = new double [numPages][];
+    byte[][] counts = new byte [numPages][];
+    boolean max = (q instanceof QrySopOr);
+
+    for (Qry q_i : q.args) {
+      QrySopScore score = (QrySopScore) q_i;
+      QryIop iop = (QryIop) q_i.args.get (0);
+
+      while (iop.docIteratorHasMatch (r)) {
+	int docid = iop.docIteratorGetMatch ();
+	int page = docid >>> PAGE_BITS;
+	int offset = docid & PAGE_MASK;
+	double s = score.getPostingScore (r, docid, iop.docIteratorGetMatchTf ());
+
+	if (scores [page] == null) {
+	  scores [page] = new double [PAGE_SIZE];
+	  counts [page] = new byte [PAGE_SIZE];
+	}
+
+	if (max) {
+	  scores [page][offset] = Math.max (scores [page][offset], s);
+	} else {
+	  scores [page][offset] += s;
+	}
+
+	counts [page][offset] ++;
+	iop.docIteratorAdvancePast (docid);
+      }
+    }
+
+    //  Select the top k.  #WSUM matches only documents that match every
+    //  argument.
+
+    int minCount = (q instanceof QrySopWSum) ? q.args.size () : 1;
+    long scored = 0;
+
+    for (int page = 0; page < numPages; page++) {
+      if (scores [page] == null)
+	continue;
+
+      for (int offset = 0; offset < PAGE_SIZE; offset++) {
+	if (counts [page][offset] >= minCount) {
+	  results.add ((page << PAGE_BITS) | offset, scores [page][offset]);
+	  scored ++;
+	}
+      }
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Can a query be evaluated term-at-a-time with the same results as
+   *  document-at-a-time evaluation?
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if evaluate can be used.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (q instanceof QrySopScore) {
+      return (r instanceof RetrievalModelUnrankedBoolean) ||
+	(r instanceof RetrievalModelRankedBoolean) ||
+	(r instanceof RetrievalModelIndri) ||
+	(r instanceof RetrievalModelBM25);
+    }
+
+    if ((q.args.size () == 0) || (q.args.size () > MAX_ARGS))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+	return false;
+    }
+
+    if (r instanceof RetrievalModelBM25) {
+      return ((q instanceof QrySopSum) || (q instanceof QrySopWSum)) &&
+	((RetrievalModelBM25) r).pruning.equals ("none");
+    }
+
+    if ((r instanceof RetrievalModelUnrankedBoolean) ||
+	(r instanceof RetrievalModelRankedBoolean)) {
+      return (q instanceof QrySopOr);
+    }
+
+    return false;
+  }
+
+}
@@ -0,0 +1,528 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Dynamic pruning for BM25 #SUM and #WSUM queries.  Exhaustive
+ *  evaluation scores every document in the union of the argument
+ *  lists, but only the top k are kept.  Each argument has a score
+ *  upper bound (see QrySopScore.getMaxScore), and once k documents
+ *  are collected, a document whose bounds can't reach the k'th score
+ *  is skipped without scoring it.  The results are identical to
+ *  exhaustive evaluation.
+ *  <p>
+ *  Two algorithms are supported:
+ *  </p>
+ *  <ul>
+ *  <li>WAND keeps the arguments sorted by their current docids.  The
+ *      pivot is the first argument at which the sum of the bounds
+ *      reaches the threshold; no document before the pivot document
+ *      can enter the top k, so the arguments before the pivot skip to
+ *      it.
+ *  <li>MaxScore sorts the arguments by bound.  The arguments whose
+ *      bounds together can't reach the threshold are non-essential:
+ *      they are only probed for documents that the essential arguments
+ *      match, and scoring stops when the remaining bounds can't lift
+ *      the document into the top k.
+ *  <li>Block-Max WAND finds the pivot as WAND does, and then checks
+ *      the bounds of the blocks of postings (128 postings each) that
+ *      cover the pivot document (see
+ *      QrySopScore.docIteratorAdvanceShallow).  Global bounds are set
+ *      by the best document in a long list, so they are loose for most
+ *      of it; block bounds are much tighter.  If the block bounds can't
+ *      reach the threshold, the arguments skip to the end of the
+ *      shortest block.
+ *  </ul>
+ *  <p>
+ *  BM25 #WSUM matches only documents that match all of its arguments
+ *  (see QrySopWSum), so no document can be skipped in favor of another;
+ *  evaluation just stops when the sum of the bounds can't reach the
+ *  threshold.
+ *  </p><p>
+ *  A document's score is the sum of its argument scores in argument
+ *  order, as in QrySopSum, so pruned and exhaustive scores are equal
+ *  bit for bit.  Bounds are compared with a small relative tolerance
+ *  so that rounding can't prune a document that belongs in the top k.
+ *  </p>
+ */
+public class QryEvalWand {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  A docid that is after every document; the docid of an argument
+   *  that has no more matches.
+   */
+  private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   *  The relative tolerance for comparisons of bounds to thresholds.
+   */
+  private static final double TOLERANCE = 1e-9;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Is a document whose score is at most bound sure to miss the top k?
+   */
+  private static boolean canSkip (double bound, double threshold) {
+    return (threshold != Double.NEGATIVE_INFINITY) &&
+      (bound < threshold - TOLERANCE * Math.abs (threshold));
+  }
+
+  /**
+   *  Evaluate a query with dynamic pruning.  The query must be
+   *  initialized, and supports (q, r) must be true.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param results The top k collector.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (Qry q, RetrievalModelBM25 r,
+			       ScoreListTopK results)
+    throws IOException {
+
+    int n = q.args.size ();
+    double[] bounds = new double [n];
+
+    for (int i = 0; i < n; i++)
+      bounds [i] = ((QrySopScore) q.args.get (i)).getMaxScore (r);
+
+    if (q instanceof QrySopWSum) {
+      return evaluateConjunction (q, r, bounds, results);
+    } else if (r.pruning.equals ("maxscore")) {
+      return evaluateMaxScore (q, r, bounds, results);
+    } else if (r.pruning.equals ("bmw")) {
+      return evaluateBlockMaxWand (q, r, bounds, results);
+    } else {
+      return evaluateWand (q, r, bounds, results);
+    }
+  }
+
+  /**
+   *  Evaluate a #WSUM query, which matches documents that match all of
+   *  its arguments, stopping when the bounds can't reach the threshold.
+   */
+  private static long evaluateConjunction (Qry q, RetrievalModelBM25 r,
+					   double[] bounds,
+					   ScoreListTopK results)
+    throws IOException {
+
+    double maxScore = 0.0;
+    long scored = 0;
+
+    for (double bound : bounds)
+      maxScore += bound;
+
+    while (q.docIteratorHasMatch (r)) {
+      if (canSkip (maxScore, results.getThreshold ()))
+	break;
+
+      int docid = q.docIteratorGetMatch ();
+      results.add (docid, ((QrySop) q).getScore (r));
+      scored ++;
+      q.docIteratorAdvancePast (docid);
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Evaluate a #SUM query with Block-Max WAND.
+   */
+  private static long evaluateBlockMaxWand (Qry q, RetrievalModelBM25 r,
+					    double[] bounds,
+					    ScoreListTopK results)
+    throws IOException {
+
+    int n = q.args.size ();
+    int[] docids = new int [n];
+    double[] scores = new double [n];
+    long scored = 0;
+    int[] byDocid = new int [n];
+
+    for (int i = 0; i < n; i++) {
+      docids [i] = nextDocid (q.args.get (i), r);
+      byDocid [i] = i;
+    }
+
+    while (true) {
+      sortByDocid (byDocid, docids);
+
+      //  Find the pivot, as in WAND.  The arguments after the pivot that
+      //  are on the pivot document are part of the pivot too.
+
+      double threshold = results.getThreshold ();
+      double upperBound = 0.0;
+      int pivot = -1;
+
+      for (int j = 0; j < n; j++) {
+	if (docids [byDocid [j]] == NO_MORE_DOCS)
+	  break;
+
+	upperBound += bounds [byDocid [j]];
+
+	if (! canSkip (upperBound, threshold)) {
+	  pivot = j;
+	  break;
+	}
+      }
+
+      if (pivot < 0)
+	break;				// No document can enter the top k
+
+      int pivotDocid = docids [byDocid [pivot]];
+
+      while ((pivot + 1 < n) && (docids [byDocid [pivot + 1]] == pivotDocid))
+	pivot ++;
+
+      //  Check the block bounds of the pivot document.
+
+      double blockBound = 0.0;
+      int blockEnd = NO_MORE_DOCS;
+
+      for (int j = 0; j <= pivot; j++) {
+	QrySopScore q_i = (QrySopScore) q.args.get (byDocid [j]);
+
+	blockEnd = Math.min (blockEnd, q_i.docIteratorAdvanceShallow (r, pivotDocid));
+	blockBound += q_i.getBlockMaxScore ();
+      }
+
+      if (canSkip (blockBound, threshold)) {
+
+	//  No document from the pivot document to the end of the
+	//  shortest block can enter the top k, unless an argument after
+	//  the pivot matches it.  Skip to the next possible document.
+
+	int next = (blockEnd == NO_MORE_DOCS) ? NO_MORE_DOCS : blockEnd + 1;
+
+	if (pivot + 1 < n)
+	  next = Math.min (next, docids [byDocid [pivot + 1]]);
+
+	for (int j = 0; j <= pivot; j++) {
+	  int i = byDocid [j];
+
+	  if (docids [i] < next)
+	    docids [i] = advanceTo (q.args.get (i), r, next);
+	}
+      } else if (docids [byDocid [0]] == pivotDocid) {
+
+	//  Score the pivot document, and move its arguments past it.
+
+	for (int i = 0; i < n; i++) {
+	  scores [i] = (docids [i] == pivotDocid) ?
+	    ((QrySop) q.args.get (i)).getScore (r) : 0.0;
+	}
+
+	results.add (pivotDocid, sumInArgOrder (scores));
+	scored ++;
+
+	for (int i = 0; i < n; i++) {
+	  if (docids [i] == pivotDocid) {
+	    q.args.get (i).docIteratorAdvancePast (pivotDocid);
+	    docids [i] = nextDocid (q.args.get (i), r);
+	  }
+	}
+      } else {
+
+	//  The documents before the pivot document can't enter the top
+	//  k.  Skip them.
+
+	for (int j = 0; j <= pivot; j++) {
+	  int i = byDocid [j];
+
+	  if (docids [i] < pivotDocid)
+	    docids [i] = advanceTo (q.args.get (i), r, pivotDocid);
+	}
+      }
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Evaluate a #SUM query with MaxScore.
+   */
+  private static long evaluateMaxScore (Qry q, RetrievalModelBM25 r,
+					double[] bounds,
+					ScoreListTopK results)
+    throws IOException {
+
+    int n = q.args.size ();
+    int[] docids = new int [n];
+    double[] scores = new double [n];
+    long scored = 0;
+
+    //  byBound lists the arguments by increasing bound.  prefix[j] is
+    //  the sum of the bounds of byBound[0..j].
+
+    int[] byBound = sortByBound (bounds);
+    double[] prefix = new double [n];
+
+    for (int j = 0; j < n; j++)
+      prefix [j] = bounds [byBound [j]] + ((j > 0) ? prefix [j - 1] : 0.0);
+
+    for (int i = 0; i < n; i++)
+      docids [i] = nextDocid (q.args.get (i), r);
+
+    //  byBound[0..firstEssential-1] are the non-essential arguments.
+
+    int firstEssential = 0;
+
+    while (true) {
+      double threshold = results.getThreshold ();
+
+      while ((firstEssential < n) &&
+	     canSkip (prefix [firstEssential], threshold))
+	firstEssential ++;
+
+      if (firstEssential == n)
+	break;				// No document can enter the top k
+
+      //  The candidate is the next document of an essential argument.
+
+      int docid = NO_MORE_DOCS;
+
+      for (int j = firstEssential; j < n; j++)
+	docid = Math.min (docid, docids [byBound [j]]);
+
+      if (docid == NO_MORE_DOCS)
+	break;
+
+      //  Score the essential arguments, then probe the non-essential
+      //  arguments, from largest bound to smallest, while the document
+      //  can still reach the threshold.
+
+      double partial = 0.0;
+      boolean skipped = false;
+
+      for (int j = firstEssential; j < n; j++) {
+	int i = byBound [j];
+	scores [i] = (docids [i] == docid) ?
+	  ((QrySop) q.args.get (i)).getScore (r) : 0.0;
+	partial += scores [i];
+      }
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+	int i = byBound [j];
+
+	if (canSkip (partial + prefix [j], threshold)) {
+	  skipped = true;
+	  break;
+	}
+
+	if (docids [i] < docid)
+	  docids [i] = advanceTo (q.args.get (i), r, docid);
+
+	scores [i] = (docids [i] == docid) ?
+	  ((QrySop) q.args.get (i)).getScore (r) : 0.0;
+	partial += scores [i];
+      }
+
+      if (! skipped) {
+	results.add (docid, sumInArgOrder (scores));
+	scored ++;
+      }
+
+      //  Move the essential arguments past the candidate.
+
+      for (int j = firstEssential; j < n; j++) {
+	int i = byBound [j];
+
+	if (docids [i] == docid) {
+	  q.args.get (i).docIteratorAdvancePast (docid);
+	  docids [i] = nextDocid (q.args.get (i), r);
+	}
+      }
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Evaluate a #SUM query with WAND.
+   */
+  private static long evaluateWand (Qry q, RetrievalModelBM25 r,
+				    double[] bounds, ScoreListTopK results)
+    throws IOException {
+
+    int n = q.args.size ();
+    int[] docids = new int [n];
+    double[] scores = new double [n];
+    long scored = 0;
+
+    //  byDocid lists the arguments by increasing current docid.  Only
+    //  a few arguments move on each pass, so insertion sort is fast.
+
+    int[] byDocid = new int [n];
+
+    for (int i = 0; i < n; i++) {
+      docids [i] = nextDocid (q.args.get (i), r);
+      byDocid [i] = i;
+    }
+
+    while (true) {
+      sortByDocid (byDocid, docids);
+
+      //  Find the pivot.
+
+      double threshold = results.getThreshold ();
+      double upperBound = 0.0;
+      int pivot = -1;
+
+      for (int j = 0; j < n; j++) {
+	if (docids [byDocid [j]] == NO_MORE_DOCS)
+	  break;
+
+	upperBound += bounds [byDocid [j]];
+
+	if (! canSkip (upperBound, threshold)) {
+	  pivot = j;
+	  break;
+	}
+      }
+
+      if (pivot < 0)
+	break;				// No document can enter the top k
+
+      int pivotDocid = docids [byDocid [pivot]];
+
+      if (docids [byDocid [0]] == pivotDocid) {
+
+	//  Every argument before the pivot is on the pivot document, so
+	//  score it, and move its arguments past it.
+
+	for (int i = 0; i < n; i++) {
+	  scores [i] = (docids [i] == pivotDocid) ?
+	    ((QrySop) q.args.get (i)).getScore (r) : 0.0;
+	}
+
+	results.add (pivotDocid, sumInArgOrder (scores));
+	scored ++;
+
+	for (int i = 0; i < n; i++) {
+	  if (docids [i] == pivotDocid) {
+	    q.args.get (i).docIteratorAdvancePast (pivotDocid);
+	    docids [i] = nextDocid (q.args.get (i), r);
+	  }
+	}
+      } else {
+
+	//  The documents before the pivot document can't enter the top
+	//  k.  Skip them.
+
+	for (int j = 0; j < pivot; j++) {
+	  int i = byDocid [j];
+
+	  if (docids [i] < pivotDocid)
+	    docids [i] = advanceTo (q.args.get (i), r, pivotDocid);
+	}
+      }
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Advance an argument to a document, or beyond if it doesn't match
+   *  the document.
+   *  @return The argument's new docid.
+   */
+  private static int advanceTo (Qry q_i, RetrievalModel r, int docid) {
+    q_i.docIteratorAdvanceTo (docid);
+    return nextDocid (q_i, r);
+  }
+
+  /**
+   *  Get the docid that an argument points to, or NO_MORE_DOCS.
+   */
+  private static int nextDocid (Qry q_i, RetrievalModel r) {
+    return q_i.docIteratorHasMatch (r) ? q_i.docIteratorGetMatch () :
+      NO_MORE_DOCS;
+  }
+
+  /**
+   *  Sort argument indexes by bound, smallest first.
+   */
+  private static int[] sortByBound (double[] bounds) {
+
+    int[] order = new int [bounds.length];
+
+    for (int i = 0; i < order.length; i++) {
+      int j = i;
+
+      while ((j > 0) && (bounds [order [j - 1]] > bounds [i])) {
+	order [j] = order [j - 1];
+	j --;
+      }
+
+      order [j] = i;
+    }
+
+    return order;
+  }
+
+  /**
+   *  Insertion sort of argument indexes by their current docids.
+   */
+  private static void sortByDocid (int[] order, int[] docids) {
+
+    for (int i = 1; i < order.length; i++) {
+      int arg = order [i];
+      int j = i;
+
+      while ((j > 0) && (docids [order [j - 1]] > docids [arg])) {
+	order [j] = order [j - 1];
+	j --;
+      }
+
+      order [j] = arg;
+    }
+  }
+
+  /**
+   *  Add the argument scores in argument order, as QrySopSum does, so
+   *  that the document score is exactly the exhaustive score.
+   *  Arguments that don't match the document have score 0.
+   */
+  private static double sumInArgOrder (double[] scores) {
+
+    double score = 0.0;
+
+    for (double s : scores)
+      score += s;
+
+    return score;
+  }
+
+  /**
+   *  Can a query be evaluated with dynamic pruning?  It must be a
+   *  BM25 #SUM or #WSUM of SCORE operators, and pruning must be
+   *  enabled (BM25:pruning).
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if evaluate can be used.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if ((! (r instanceof RetrievalModelBM25)) ||
+	((RetrievalModelBM25) r).pruning.equals ("none"))
+      return false;
+
+    if ((! (q instanceof QrySopSum)) && (! (q instanceof QrySopWSum)))
+      return false;
+
+    if (q.args.size () == 0)
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+	return false;
+    }
+
+    return true;
+  }
+
+}
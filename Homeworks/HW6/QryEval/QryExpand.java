@@ -48,17 +48,30 @@ public class QryExpand {
             BufferedReader input = new BufferedReader(
                     new FileReader(fbInitialRankingFile));
             String line;
+            List<String[]> rows = new ArrayList<>();
+            List<String> externalIds = new ArrayList<>();
             while ((line = input.readLine()) != null) {
                 String[] tokens = line.split(" ");
+                rows.add(tokens);
+                externalIds.add(tokens[2].trim());
+            }
+            input.close();
+
+            // Resolve every external id at once
+            int[] docIds = Idx.getInternalDocids(externalIds);
+
+            for (int i=0;i<rows.size();i++) {
+                String[] tokens = rows.get(i);
                 String qid = tokens[0].trim();
                 if (!scoreLists.containsKey(qid)) {
                     scoreLists.put(qid, new ScoreList());
                 }
-                String docId = tokens[2].trim();
+                if (docIds[i] < 0) {
+                    throw new Exception("External id " + externalIds.get(i) + " not found.");
+                }
                 double score = Double.parseDouble(tokens[4].trim());
-                scoreLists.get(qid).add(Idx.getInternalDocid(docId), score);
+                scoreLists.get(qid).add(docIds[i], score);
             }
-            input.close();
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -66,6 +79,21 @@ public class QryExpand {
     }
 
     public String expand(String qLine, String defaultQryName) throws IOException {
+        StringBuilder expansion = new StringBuilder();
+        qLine = expand(qLine, defaultQryName, expansion);
+        writeExpansion(expansion.toString());
+        return qLine;
+    }
+
+    /**
+     * Expand a query line without writing the expansion query file.
+     * The line for the expansion query file is appended to expansion,
+     * so that queries expanded in parallel can be written in order
+     * (see writeExpansion).  QryExpand has no per-query state, so
+     * several threads can expand queries at once.
+     */
+    public String expand(String qLine, String defaultQryName,
+                         StringBuilder expansion) throws IOException {
         if (!isExpand) return qLine;
 
         // Build results from model
@@ -77,7 +105,7 @@ public class QryExpand {
             results = scoreLists.get(qid);
         }
         if (results == null && model != null) {
-            results = QryEval.processQuery(query, model);
+            results = QryEval.processQuery(query, model, fbDocs);
         }
 
         results.sort();
@@ -100,8 +128,9 @@ public class QryExpand {
         // Build score
         Map<String, Double> scores = new HashMap<>();
         double fieldLen = Idx.getSumOfFieldLengths("body");
+        Map<String, IdxStats.TermStats> termStats = Idx.getTermStats("body", terms);
         for (String term: terms) {
-            double ctf = Idx.getTotalTermFreq("body", term);
+            double ctf = termStats.get(term).ctf;
             for (int i=0;i<Math.min(results.size(), fbDocs);i++) {
                 int docId = results.getDocid(i);
                 double modelScore = results.getDocidScore(i);
@@ -138,14 +167,22 @@ public class QryExpand {
         fbQuerySB.append(")");
         String fbQuery = fbQuerySB.toString();
 
-        // Append fbQuery to file
-        appendToFile(String.format("%s: %s\n", qid, fbQuery), fbExpansionQueryFile);
+        // Append fbQuery to the expansion query file's lines
+        expansion.append(String.format("%s: %s\n", qid, fbQuery));
 
         // Construct final qLine
         return String.format("%s: %s(%f %s(%s) %f %s)", qid, fbDefaultQryName,
                 fbOrigWeight, defaultQryName, query, 1.0-fbOrigWeight, fbQuery);
     }
 
+    /**
+     * Append lines to the expansion query file.
+     */
+    public void writeExpansion(String lines) throws IOException {
+        if (isExpand && !lines.isEmpty())
+            appendToFile(lines, fbExpansionQueryFile);
+    }
+
     private static void appendToFile(String line, String filename) throws IOException {
         BufferedWriter output = new BufferedWriter(
                 new FileWriter(filename, true));
@@ -17,7 +17,9 @@ import java.util.*;
  *  and location information are accessed via Qry.docIterator and
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
- *  available via specific methods (e.g., getDf and getCtf).
+ *  available via specific methods (e.g., getDf and getCtf).  QryIopTerm
+ *  overrides the iterators to stream postings from the index instead
+ *  of caching a list.
  *  </p><p>
  *  QryIop operators support iteration over the locations in the
  *  document that Qry.docIteratorHasMatch matches.  The semantics
@@ -36,6 +38,103 @@ public abstract class QryIop extends Qry {
    *  list, NOT recursively over the query arguments.
    */
 
+  /**
+   *  A min-heap of argument indexes, ordered by an int key (a docid or
+   *  a location).  It is stored in parallel arrays to avoid boxing.
+   *  Operators that merge their arguments (e.g., SYN, WINDOW) use it.
+   */
+  protected static class ArgHeap {
+
+    private int[] args;
+    private int[] keys;
+    private int size = 0;
+
+    protected ArgHeap (int capacity) {
+      this.args = new int [capacity];
+      this.keys = new int [capacity];
+    }
+
+    protected void clear () {
+      this.size = 0;
+    }
+
+    protected boolean isEmpty () {
+      return (this.size == 0);
+    }
+
+    protected int peekKey () {
+      return this.keys [0];
+    }
+
+    /**
+     *  Remove the argument with the smallest key.
+     *  @return The argument index.
+     */
+    protected int pop () {
+
+      int arg = this.args [0];
+
+      this.size --;
+
+      if (this.size > 0) {
+	int lastArg = this.args [this.size];
+	int lastKey = this.keys [this.size];
+	int i = 0;
+
+	//  Sift the last entry down from the root.
+
+	while (true) {
+	  int child = 2 * i + 1;
+
+	  if (child >= this.size)
+	    break;
+
+	  if ((child + 1 < this.size) &&
+	      (this.keys [child + 1] < this.keys [child]))
+	    child ++;
+
+	  if (lastKey <= this.keys [child])
+	    break;
+
+	  this.args [i] = this.args [child];
+	  this.keys [i] = this.keys [child];
+	  i = child;
+	}
+
+	this.args [i] = lastArg;
+	this.keys [i] = lastKey;
+      }
+
+      return arg;
+    }
+
+    /**
+     *  Add an argument.
+     *  @param arg The argument index.
+     *  @param key The argument's key.
+     */
+    protected void push (int arg, int key) {
+
+      int i = this.size ++;
+
+      //  Sift up from the new leaf.
+
+      while (i > 0) {
+	int parent = (i - 1) >>> 1;
+
+	if (this.keys [parent] <= key)
+	  break;
+
+	this.args [i] = this.args [parent];
+	this.keys [i] = this.keys [parent];
+	i = parent;
+      }
+
+      this.args [i] = arg;
+      this.keys [i] = key;
+    }
+  }
+
   /**
    *  An invalid index for docIterator and locIterator.
    */
@@ -53,6 +152,19 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  An inverted list that an initialized copy of the operator already
+   *  evaluated (see shareList), or null.
+   */
+  protected InvList sharedList = null;
+
+  /**
+   *  Does the parent operator use the locIterator?  If not, the
+   *  operator can produce an inverted list without positions.  This is
+   *  set by planPostings; it is true if planPostings isn't called.
+   */
+  protected boolean needsPositions = true;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -70,14 +182,42 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorFinish ();
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.advance (this.docIteratorIndex, docid + 1);
     }
-           
+
     this.locIteratorIndex = 0;
   }
 
+  /**
+   *  Get the impacts of the block of postings that contains the first
+   *  document at or after docid, without moving the docIterator.  The
+   *  block covers the documents from docid to the returned docid.
+   *  Dynamic pruning (see QryEvalWand) uses block impacts to skip
+   *  blocks of documents that can't score well.  docid should not be
+   *  less than the docIterator's current document.
+   *  @param docid An internal document id
+   *  @param impacts Set to the impacts of the block
+   *  @return The last docid of the block, or Integer.MAX_VALUE if no
+   *  document at or after docid matches.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int docIteratorAdvanceShallow (int docid, InvList.Impacts impacts)
+    throws IOException {
+
+    int n = this.invertedList.advance (this.docIteratorIndex, docid);
+
+    if (n >= this.invertedList.df) {
+      impacts.clear ();
+      return Integer.MAX_VALUE;
+    }
+
+    return this.invertedList.getBlockImpacts (n / InvList.BLOCK_SIZE, impacts);
+  }
+
   /**
    *  Advance the query operator's internal iterator to the specified
    *  document if it exists, or beyond if it doesn't.
@@ -85,11 +225,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex =
+      this.invertedList.advance (this.docIteratorIndex, docid);
     this.locIteratorIndex = 0;
   }
 
@@ -98,7 +235,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +250,13 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -130,6 +268,15 @@ public abstract class QryIop extends Qry {
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  An estimate of the number of documents that the docIterator
+   *  visits, which is the list's document frequency.
+   *  @return The document frequency (df).
+   */
+  public long docIteratorCost () {
+    return this.getDf ();
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -158,6 +305,26 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Decide which inverted lists in the query tree need positions.
+   *  Proximity operators (NEAR, WINDOW) need the positions of their
+   *  arguments.  Other inverted list operators (e.g., SYN) need the
+   *  positions of their arguments only if their own positions are
+   *  needed.
+   *  @param positions Does the parent need positions from this operator?
+   */
+  public void planPostings (boolean positions) {
+
+    this.needsPositions = positions;
+
+    boolean argPositions = positions ||
+      (this instanceof QryIopNear) || (this instanceof QryIopWindow);
+
+    for (Qry q_i: this.args) {
+      q_i.planPostings (argPositions);
+    }
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -173,6 +340,14 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
+    //  A shared list is already evaluated, so the arguments aren't used.
+
+    if (this.sharedList != null) {
+      this.invertedList = this.sharedList;
+      this.initializeIterators ();
+      return;
+    }
+
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
@@ -182,9 +357,27 @@ public abstract class QryIop extends Qry {
     //  Evaluate the operator.
     
     this.evaluate ();
+    this.initializeIterators ();
+  }
 
-    //  Initialize the internal iterators.
+  /**
+   *  Use the inverted list of an initialized copy of this operator, so
+   *  that initialize points the iterators at that list instead of
+   *  evaluating the operator again.  Inverted lists aren't modified
+   *  after they are built, so copies in different threads can share
+   *  one (see QryEvalParallel).  QryIopTerm reads its list from the
+   *  InvListCache or streams it, and ignores shared lists.
+   *  @param q The initialized copy.  If it didn't materialize a list,
+   *  this operator evaluates its own.
+   */
+  public void shareList (QryIop q) {
+    this.sharedList = q.invertedList;
+  }
 
+  /**
+   *  Point the internal iterators at the start of the inverted list.
+   */
+  protected void initializeIterators () {
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
   }
@@ -203,11 +396,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -218,7 +411,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +422,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> positions = this.docIteratorGetMatchPosting().positions;
-    return positions.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -2,16 +2,15 @@
  *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The NEAR/n operator for all retrieval models.  It matches when its
+ *  arguments occur in order, with each argument at most n positions
+ *  after the previous one.  The location of a match is the location of
+ *  the last argument.
  */
-public class QryIopNear extends QryIop {
+public class QryIopNear extends QryIopPositional {
 
   private int distance;
 
@@ -20,66 +19,62 @@ public class QryIopNear extends QryIop {
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
-   *  @throws IOException Error accessing the Lucene index.
+   *  Get the maximum distance between adjacent arguments.
+   *  @return The distance n of NEAR/n.
    */
-  protected void evaluate () throws IOException {
+  public int getDistance () {
+    return this.distance;
+  }
+
+  /**
+   *  Find the matches in the document that all of the arguments'
+   *  docIterators point to.  The locations of the matches are stored
+   *  in the positions buffer.  The arguments' locIterators are consumed.
+   *  @return The number of matches.
+   */
+  protected int matchLocations () {
 
-    //  Create an empty inverted list.  If there are no query arguments,
-    //  this is the final result.
-    
-    this.invertedList = new InvList (this.getField());
+    QryIop firstArg = (QryIop) args.get(0);
+    int tf = 0;
 
-    if (args.size () == 0) {
-      return;
-    }
+    while (firstArg.locIteratorHasMatch()) {
+      boolean found = true;
+
+      for (int i=1;i<args.size();i++) {
+        QryIop prev = (QryIop) args.get(i-1);
+        QryIop cur = (QryIop) args.get(i);
+        int prevLoc = prev.locIteratorGetMatch();
 
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
-
-    while (this.docIteratorHasMatchAll(null)) {
-      int matchDocid = args.get(0).docIteratorGetMatch();
-      List<Integer> positions = new ArrayList<>();
-
-      QryIop firstArg = (QryIop) args.get(0);
-      while (firstArg.locIteratorHasMatch()) {
-        QryIop prev, cur;
-        int prevId, curId;
-        boolean found = true;
-        for (int i=1;i<args.size();i++) {
-          prev = (QryIop) args.get(i-1);
-          cur = (QryIop) args.get(i);
-          prevId = prev.locIteratorGetMatch();
-          cur.locIteratorAdvancePast(prevId);
-
-          if (!cur.locIteratorHasMatch()) {
-            firstArg.locIteratorFinish();
-            found = false;
-            break;
-          }
-
-          curId = cur.locIteratorGetMatch();
-          if (curId-prevId>distance) {
-            firstArg.locIteratorAdvance();
-            found = false;
-            break;
-          }
+        cur.locIteratorAdvancePast(prevLoc);
+
+        if (!cur.locIteratorHasMatch()) {
+          firstArg.locIteratorFinish();
+          found = false;
+          break;
         }
 
-        if (found) {
-          positions.add(((QryIop)args.get(args.size()-1)).locIteratorGetMatch());
-          for (Qry q:args) {
-            ((QryIop) q).locIteratorAdvance();
-          }
+        if (cur.locIteratorGetMatch()-prevLoc>distance) {
+          firstArg.locIteratorAdvance();
+          found = false;
+          break;
         }
       }
 
-      if (positions.size() != 0) {
-        this.invertedList.appendPosting (matchDocid, positions);
+      if (found) {
+        if (tf == this.positions.length) {
+          this.positions = Arrays.copyOf (this.positions, 2 * tf);
+        }
+
+        this.positions[tf++] =
+          ((QryIop) args.get(args.size()-1)).locIteratorGetMatch();
+
+        for (int i=0;i<args.size();i++) {
+          ((QryIop) args.get(i)).locIteratorAdvance();
+        }
       }
-      args.get(0).docIteratorAdvancePast(matchDocid);
     }
+
+    return tf;
   }
 
 }
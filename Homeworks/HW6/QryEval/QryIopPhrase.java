@@ -0,0 +1,63 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  The inverted list of #NEAR/1 (term1 term2), read from the phrase
+ *  index (see IdxPhrases) instead of being computed from the terms'
+ *  inverted lists.  QryParser creates it; it isn't part of the query
+ *  language.
+ */
+public class QryIopPhrase extends QryIop {
+
+  private String term1;
+  private String term2;
+
+  /**
+   *  @param term1String The first term.
+   *  @param term2String The second term.
+   *  @param fieldString The field that the terms occur in.
+   */
+  public QryIopPhrase (String term1String, String term2String,
+		       String fieldString) {
+    this.term1 = term1String;
+    this.term2 = term2String;
+    this.field = fieldString;
+    this.setDisplayName ("#NEAR/1");
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    this.invertedList =
+      Idx.getPhrases ().get (this.field, this.term1, this.term2);
+
+    if (this.invertedList == null) {
+      throw new IllegalStateException
+	("The phrase index doesn't have " + this);
+    }
+  }
+
+  /**
+   *  Get a canonical string version of this query operator.
+   *  @return The canonical string version of this query operator.
+   */
+  public String toCanonicalString () {
+    return (this.getDisplayName ().toLowerCase () + "( " + this.term1 + "." +
+	    this.field + " " + this.term2 + "." + this.field + " )");
+  }
+
+  /**
+   *  Get a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString () {
+    return (this.getDisplayName () + "( " + this.term1 + "." + this.field +
+	    " " + this.term2 + "." + this.field + ")");
+  }
+}
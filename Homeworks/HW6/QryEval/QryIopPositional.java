@@ -0,0 +1,372 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ *  The parent class of query operators that match locations of their
+ *  arguments in the same document (e.g., NEAR/n, WINDOW/n).  Each
+ *  subclass implements matchLocations, which finds the matches in one
+ *  document.
+ *  <p>
+ *  A positional operator can be evaluated in two ways.  If the
+ *  retrieval model needs corpus statistics (df, ctf), the full
+ *  inverted list is materialized when the operator is initialized, as
+ *  for other QryIop operators.  Otherwise (the Boolean models) it uses
+ *  two-phase iteration:  The conjunction of the arguments' docids is a
+ *  cheap approximation, and positions are checked only in documents
+ *  that the docIterator is asked about.  When a parent operator
+ *  advances the iterator past documents (e.g., an #AND with a rare
+ *  term), those documents are never checked.
+ *  </p><p>
+ *  getDf and getCtf are available in two-phase mode only before
+ *  iteration begins; the first call materializes the inverted list.
+ *  </p>
+ */
+public abstract class QryIopPositional extends QryIop {
+
+  /**
+   *  The locations of the matches in the current document.  The buffer
+   *  is reused for every document.
+   */
+  protected int[] positions = new int [16];
+
+  /**
+   *  True if the operator uses two-phase iteration instead of a
+   *  materialized inverted list.
+   */
+  private boolean twoPhase = false;
+
+  /**
+   *  True after the two-phase docIterator checks its first document.
+   */
+  private boolean started = false;
+
+  //  The two-phase iterators.  matchDocid is the verified document that
+  //  the docIterator points to, or Qry.INVALID_DOCID if the current
+  //  candidate hasn't been checked yet.
+
+  private int matchDocid = Qry.INVALID_DOCID;
+  private int matchTf = 0;
+  private int locIndex = 0;
+
+  /**
+   *  An estimate of the number of documents that the docIterator
+   *  visits.  In two-phase mode, df isn't known, so the estimate is the
+   *  df of the rarest argument, which bounds the conjunction.
+   *  @return The estimated number of documents.
+   */
+  public long docIteratorCost () {
+
+    if (! this.twoPhase)
+      return super.docIteratorCost ();
+
+    long cost = Long.MAX_VALUE;
+
+    for (Qry q_i: this.args) {
+      cost = Math.min (cost, q_i.docIteratorCost ());
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+
+    if (! this.twoPhase) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    this.locIndex = 0;
+
+    if (this.matchDocid != Qry.INVALID_DOCID) {
+      if (this.matchDocid > docid)
+	return;
+      this.matchDocid = Qry.INVALID_DOCID;
+    }
+
+    for (Qry q_i: this.args) {
+      q_i.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (! this.twoPhase) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    this.locIndex = 0;
+
+    if (this.matchDocid != Qry.INVALID_DOCID) {
+      if (this.matchDocid >= docid)
+	return;
+      this.matchDocid = Qry.INVALID_DOCID;
+    }
+
+    for (Qry q_i: this.args) {
+      q_i.docIteratorAdvanceTo (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+
+    if (! this.twoPhase) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.matchDocid = Qry.INVALID_DOCID;
+
+    for (Qry q_i: this.args) {
+      ((QryIop) q_i).docIteratorFinish ();
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return (this.twoPhase) ? this.matchDocid : super.docIteratorGetMatch ();
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    return (this.twoPhase) ? this.matchTf : super.docIteratorGetMatchTf ();
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.  In two-phase
+   *  mode, candidates (documents that match all arguments) are checked
+   *  until one has a match.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+
+    if (! this.twoPhase)
+      return super.docIteratorHasMatch (r);
+
+    if (this.matchDocid != Qry.INVALID_DOCID)
+      return true;
+
+    this.started = true;
+
+    while (this.docIteratorHasMatchAll (null)) {
+      int docid = this.args.get (0).docIteratorGetMatch ();
+      int tf = this.matchLocations ();
+
+      if (tf > 0) {
+	this.matchDocid = docid;
+	this.matchTf = tf;
+	this.locIndex = 0;
+	return true;
+      }
+
+      this.args.get (0).docIteratorAdvancePast (docid);
+    }
+
+    return false;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    //  Create an empty inverted list.  If there are no query arguments,
+    //  this is the final result.
+
+    this.invertedList = new InvList (this.getField());
+
+    if (args.size () == 0) {
+      return;
+    }
+
+    //  Each pass of the loop adds 1 document to result inverted list
+    //  until all of the argument inverted lists are depleted.
+
+    while (this.docIteratorHasMatchAll(null)) {
+      int matchDocid = args.get(0).docIteratorGetMatch();
+      int tf = this.matchLocations ();
+
+      if (tf != 0) {
+        if (this.needsPositions) {
+          this.invertedList.appendPosting (matchDocid, this.positions, tf);
+        } else {
+          this.invertedList.appendPosting (matchDocid, tf);
+        }
+      }
+      args.get(0).docIteratorAdvancePast(matchDocid);
+    }
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    this.materialize ();
+    return super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    this.materialize ();
+    return super.getDf ();
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments), including any
+   *  internal iterators.  The inverted list is materialized unless the
+   *  retrieval model is Boolean.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    this.twoPhase =
+      ((r instanceof RetrievalModelUnrankedBoolean) ||
+       (r instanceof RetrievalModelRankedBoolean)) &&
+      (this.args.size () > 0) && (this.sharedList == null);
+
+    if (! this.twoPhase) {
+      super.initialize (r);
+      return;
+    }
+
+    for (Qry q_i: this.args) {
+      q_i.initialize (r);
+    }
+
+    this.started = false;
+    this.matchDocid = Qry.INVALID_DOCID;
+    this.locIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (this.twoPhase) {
+      this.locIndex ++;
+    } else {
+      super.locIteratorAdvance ();
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+
+    if (! this.twoPhase) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    while ((this.locIndex < this.matchTf) &&
+	   (this.positions [this.locIndex] <= loc)) {
+      this.locIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (this.twoPhase) {
+      this.locIndex = this.matchTf;
+    } else {
+      super.locIteratorFinish ();
+    }
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    return (this.twoPhase) ? this.positions [this.locIndex] :
+      super.locIteratorGetMatch ();
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    return (this.twoPhase) ? (this.locIndex < this.matchTf) :
+      super.locIteratorHasMatch ();
+  }
+
+  /**
+   *  Find the matches in the document that all of the arguments'
+   *  docIterators point to.  The locations of the matches are stored
+   *  in the positions buffer.  The arguments' locIterators are consumed.
+   *  @return The number of matches.
+   */
+  protected abstract int matchLocations ();
+
+  /**
+   *  Switch from two-phase iteration to a materialized inverted list,
+   *  so that df and ctf are available.
+   *  @throws IllegalStateException The docIterator has already been used.
+   */
+  private void materialize () {
+
+    if (! this.twoPhase)
+      return;
+
+    if (this.started) {
+      throw new IllegalStateException
+	("df and ctf of " + this + " are not available after iteration begins.");
+    }
+
+    try {
+      this.evaluate ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.twoPhase = false;
+    this.initializeIterators ();
+  }
+
+}
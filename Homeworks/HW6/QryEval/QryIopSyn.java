@@ -6,9 +6,41 @@ import java.util.*;
 
 /**
  *  The SYN operator for all retrieval models.
+ *  <p>
+ *  SYN is a k-way merge of its arguments.  A min-heap of arguments,
+ *  ordered by docid, finds the arguments that match the next document,
+ *  and a second min-heap, ordered by location, merges their locations.
+ *  Each output posting costs O(log k) per argument posting instead of
+ *  O(k), which matters for expansion queries that put many variants in
+ *  one SYN.  A location is counted once even if several arguments
+ *  match it (e.g., #SYN (apple apple)).
+ *  </p>
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  Decide which inverted lists in the query tree need positions.
+   *  SYN can sum the term frequencies of its arguments, without their
+   *  positions, only if no two arguments can match the same location,
+   *  i.e., if they are distinct terms.
+   *  @param positions Does the parent need positions from this operator?
+   */
+  public void planPostings (boolean positions) {
+
+    Set<String> terms = new HashSet<String> ();
+    boolean distinctTerms = true;
+
+    for (Qry q_i: this.args) {
+      if ((! (q_i instanceof QryIopTerm)) || (! terms.add (q_i.toString ()))) {
+	distinctTerms = false;
+	break;
+      }
+    }
+
+    super.planPostings (positions || (! distinctTerms));
+    this.needsPositions = positions;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -18,55 +50,96 @@ public class QryIopSyn extends QryIop {
 
     //  Create an empty inverted list.  If there are no query arguments,
     //  this is the final result.
-    
+
     this.invertedList = new InvList (this.getField());
 
     if (args.size () == 0) {
       return;
     }
 
+    //  If any argument needs positions, all of them have positions,
+    //  and locations are merged to remove duplicates.
+
+    boolean mergeLocations = ((QryIop) this.args.get (0)).needsPositions;
+
+    ArgHeap docHeap = new ArgHeap (this.args.size ());
+    ArgHeap locHeap = new ArgHeap (this.args.size ());
+    int[] matched = new int [this.args.size ()];
+    int[] positions = new int [16];
+
+    for (int i = 0; i < this.args.size (); i++) {
+      Qry q_i = this.args.get (i);
+
+      if (q_i.docIteratorHasMatch (null))
+	docHeap.push (i, q_i.docIteratorGetMatch ());
+    }
+
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  until all of the argument inverted lists are depleted.  The
+    //  positions buffer is reused for every document.
 
-    while (true) {
+    while (! docHeap.isEmpty ()) {
 
-      //  Find the minimum next document id.  If there is none, we're done.
+      //  Pop the arguments that match the minimum next document id.
 
-      int minDocid = Qry.INVALID_DOCID;
+      int minDocid = docHeap.peekKey ();
+      int numMatched = 0;
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
-        }
-      }
+      while ((! docHeap.isEmpty ()) && (docHeap.peekKey () == minDocid))
+	matched [numMatched++] = docHeap.pop ();
+
+      //  Create a new posting that is the union of the postings that
+      //  match the minDocid.  Save it.
+
+      int tf = 0;
+
+      if (mergeLocations) {
+	locHeap.clear ();
+
+	for (int j = 0; j < numMatched; j++) {
+	  QryIop iop_j = (QryIop) this.args.get (matched [j]);
+
+	  if (iop_j.locIteratorHasMatch ())
+	    locHeap.push (matched [j], iop_j.locIteratorGetMatch ());
+	}
+
+	while (! locHeap.isEmpty ()) {
+	  int loc = locHeap.peekKey ();
+	  int arg = locHeap.pop ();
+	  QryIop iop = (QryIop) this.args.get (arg);
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
+	  if ((tf == 0) || (positions [tf - 1] != loc)) {
+	    if (tf == positions.length)
+	      positions = Arrays.copyOf (positions, 2 * positions.length);
+	    positions [tf++] = loc;
+	  }
+
+	  iop.locIteratorAdvance ();
+
+	  if (iop.locIteratorHasMatch ())
+	    locHeap.push (arg, iop.locIteratorGetMatch ());
 	}
+      } else {
+	for (int j = 0; j < numMatched; j++)
+	  tf += ((QryIop) this.args.get (matched [j])).docIteratorGetMatchTf ();
+      }
+
+      if (mergeLocations && this.needsPositions) {
+	this.invertedList.appendPosting (minDocid, positions, tf);
+      } else {
+	this.invertedList.appendPosting (minDocid, tf);
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      //  Advance the matched arguments and put them back in the heap.
+
+      for (int j = 0; j < numMatched; j++) {
+	Qry q_j = this.args.get (matched [j]);
+
+	q_j.docIteratorAdvancePast (minDocid);
+
+	if (q_j.docIteratorHasMatch (null))
+	  docHeap.push (matched [j], q_j.docIteratorGetMatch ());
+      }
     }
   }
 
@@ -4,18 +4,68 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  A TERM operator whose inverted list is small enough for the
+ *  InvListCache uses the cached list, fetching it first if necessary.
+ *  Otherwise it does not materialize its inverted list.  Its
+ *  docIterator streams postings directly from Lucene's per-segment
+ *  PostingsEnums, docIteratorAdvanceTo uses Lucene's advance (which
+ *  can use skip data), and positions are decoded only when the
+ *  locIterator asks for them.  df and ctf come from the index's term
+ *  statistics.
+ *  </p><p>
+ *  The block impacts of streamed postings (see
+ *  docIteratorAdvanceShallow) come from the impacts that Lucene stores
+ *  in the skip data of each segment's postings.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  //  Corpus statistics for the term, used when streaming.
+
+  private int df;
+  private int ctf;
+
+  //  The streaming docIterator.  docid is the current (global) docid,
+  //  or NO_MORE_DOCS when the iterator is exhausted.
+
+  private List<LeafReaderContext> leaves;
+  private int leaf;
+  private int docBase;
+  private PostingsEnum postings;
+  private int docid;
+
+  //  The streaming locIterator.  Positions can be read from a
+  //  PostingsEnum just once, so they are decoded into a buffer the
+  //  first time the locIterator is used in a document.
+
+  private int[] positions = new int [16];
+  private int positionsDocid = Qry.INVALID_DOCID;
+  private int tf;
+  private int locIndex;
+
+  //  The streaming block impacts.  A segment's ImpactsEnum is opened
+  //  the first time that its impacts are needed, and it is used only
+  //  for advanceShallow, so it is independent of the docIterator.
+  //  shallowTarget and shallowEnd are the range of the last block.
+
+  private ImpactsEnum[] leafImpacts;
+  private boolean[] leafImpactsOpened;
+  private int shallowTarget;
+  private int shallowEnd;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,17 +85,398 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvancePast (docid);
+    } else {
+      this.docIteratorAdvanceTo (docid + 1);
+    }
+  }
+
+  /**
+   *  Get the impacts of the block of postings that contains the first
+   *  document at or after docid, without moving the docIterator.
+   *  @param docid An internal document id
+   *  @param impacts Set to the impacts of the block
+   *  @return The last docid of the block, or Integer.MAX_VALUE if no
+   *  document at or after docid matches.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int docIteratorAdvanceShallow (int docid, InvList.Impacts impacts)
+    throws IOException {
+
+    if (this.invertedList != null)
+      return super.docIteratorAdvanceShallow (docid, impacts);
+
+    impacts.clear ();
+
+    //  Lucene's skip data can't move backwards.  The documents before
+    //  the last target get a block with no useful bound.
+
+    if (docid < this.shallowTarget) {
+      impacts.add (Integer.MAX_VALUE, 0);
+      return this.shallowEnd;
+    }
+
+    this.shallowTarget = docid;
+
+    for (int i = Math.max (this.leaf, 0); i < this.leaves.size (); i++) {
+      LeafReaderContext context = this.leaves.get (i);
+      int leafEnd = context.docBase + context.reader ().maxDoc () - 1;
+
+      if (docid > leafEnd)
+	continue;
+
+      //  A segment without the term is one block without impacts.
+
+      ImpactsEnum leafImpacts = this.getLeafImpacts (i);
+
+      if (leafImpacts == null) {
+	this.shallowEnd = leafEnd;
+	return this.shallowEnd;
+      }
+
+      leafImpacts.advanceShallow (Math.max (docid - context.docBase, 0));
+
+      Impacts blockImpacts = leafImpacts.getImpacts ();
+      int upTo = blockImpacts.getDocIdUpTo (0);
+
+      for (Impact impact : blockImpacts.getImpacts (0)) {
+	impacts.add (impact.freq, (int) Math.min (impact.norm, Integer.MAX_VALUE));
+      }
+
+      this.shallowEnd = (upTo == DocIdSetIterator.NO_MORE_DOCS) ? leafEnd :
+	Math.min (context.docBase + upTo, leafEnd);
+      return this.shallowEnd;
+    }
+
+    this.shallowEnd = Integer.MAX_VALUE;
+    return this.shallowEnd;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (this.invertedList != null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    this.locIndex = 0;
+
+    if (docid <= this.docid)
+      return;
+
+    try {
+      while (this.postings != null) {
+
+	//  Segments that end before docid are skipped without reading
+	//  their postings.
+
+	int target = docid - this.docBase;
+
+	if (target < this.leaves.get (this.leaf).reader ().maxDoc ()) {
+	  int leafDocid = this.postings.advance (Math.max (target, 0));
+
+	  if (leafDocid != DocIdSetIterator.NO_MORE_DOCS) {
+	    this.docid = this.docBase + leafDocid;
+	    return;
+	  }
+	}
+
+	this.nextLeaf ();
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.docid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.invertedList != null) {
+      super.docIteratorFinish ();
+    } else {
+      this.postings = null;
+      this.docid = DocIdSetIterator.NO_MORE_DOCS;
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return (this.invertedList != null) ? super.docIteratorGetMatch () : this.docid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+
+    if (this.invertedList != null)
+      return super.docIteratorGetMatchTf ();
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return (this.invertedList != null) ? super.docIteratorHasMatch (r) :
+      (this.docid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  This is
+   *  only used when the list fits in the InvListCache.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    this.invertedList =
+      InvListCache.get (this.term, this.field, this.needsPositions);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    return (this.invertedList != null) ? super.getCtf () : this.ctf;
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return (this.invertedList != null) ? super.getDf () : this.df;
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The (processed) term.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Initialize the query operator, including any internal iterators;
+   *  this method must be called before iteration can begin.
+   *  @param r A retrieval model (that is ignored)
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    this.invertedList = null;
+    this.df = (int) Idx.getDocFreq (this.field, this.term);
+    this.ctf = (int) Idx.getTotalTermFreq (this.field, this.term);
+
+    if (InvListCache.fits (this.df, this.ctf, this.needsPositions)) {
+      super.initialize (r);
+      return;
+    }
+    this.leaves = Idx.INDEXREADER.leaves ();
+    this.leaf = -1;
+    this.postings = null;
+    this.docid = Qry.INVALID_DOCID;
+    this.positionsDocid = Qry.INVALID_DOCID;
+    this.locIndex = 0;
+    this.leafImpacts = null;
+    this.shallowTarget = Qry.INVALID_DOCID;
+    this.shallowEnd = Qry.INVALID_DOCID;
+
+    if (this.df > 0) {
+      this.nextLeaf ();
+    }
+
+    this.docIteratorAdvanceTo (0);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (this.invertedList != null) {
+      super.locIteratorAdvance ();
+    } else {
+      this.locIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+
+    if (this.invertedList != null) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.readPositions ();
+
+    while ((this.locIndex < this.tf) &&
+	   (this.positions [this.locIndex] <= loc)) {
+      this.locIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (this.invertedList != null) {
+      super.locIteratorFinish ();
+    } else {
+      this.locIndex = this.docIteratorGetMatchTf ();
+    }
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+
+    if (this.invertedList != null)
+      return super.locIteratorGetMatch ();
+
+    this.readPositions ();
+    return this.positions [this.locIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+
+    if (this.invertedList != null)
+      return super.locIteratorHasMatch ();
+
+    this.readPositions ();
+    return (this.locIndex < this.tf);
+  }
+
+  /**
+   *  Get the ImpactsEnum of a segment, opening it if necessary.
+   *  @param i The index of the segment.
+   *  @return The ImpactsEnum, or null if the segment doesn't have the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private ImpactsEnum getLeafImpacts (int i) throws IOException {
+
+    if (this.leafImpacts == null) {
+      this.leafImpacts = new ImpactsEnum [this.leaves.size ()];
+      this.leafImpactsOpened = new boolean [this.leaves.size ()];
+    }
+
+    if (! this.leafImpactsOpened [i]) {
+      Terms terms = this.leaves.get (i).reader ().terms (this.field);
+
+      if (terms != null) {
+	TermsEnum termsEnum = terms.iterator ();
+
+	if (termsEnum.seekExact (new BytesRef (this.term)))
+	  this.leafImpacts [i] = termsEnum.impacts (PostingsEnum.FREQS);
+      }
+
+      this.leafImpactsOpened [i] = true;
+    }
+
+    return this.leafImpacts [i];
+  }
+
+  /**
+   *  Move the streaming iterator to the next segment that has postings
+   *  for the term.  The iterator is positioned before the segment's
+   *  first document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void nextLeaf () throws IOException {
+
+    Term t = new Term (this.field, this.term);
+
+    this.postings = null;
+
+    while ((this.postings == null) && (++ this.leaf < this.leaves.size ())) {
+      LeafReaderContext context = this.leaves.get (this.leaf);
+      this.docBase = context.docBase;
+      this.postings = context.reader ().postings (t, (this.needsPositions) ?
+						  PostingsEnum.POSITIONS :
+						  PostingsEnum.FREQS);
+    }
+  }
+
+  /**
+   *  Decode the positions of the current document, if that hasn't
+   *  been done already.
+   */
+  private void readPositions () {
+
+    if (this.positionsDocid == this.docid)
+      return;
+
+    try {
+      this.tf = this.postings.freq ();
+
+      if (this.tf > this.positions.length)
+	this.positions = new int [Math.max (this.tf, 2 * this.positions.length)];
+
+      for (int i = 0; i < this.tf; i++)
+	this.positions [i] = this.postings.nextPosition ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.positionsDocid = this.docid;
+  }
+
+  /**
+   *  Get a canonical string version of this query operator.
+   *  @return The canonical string version of this query operator.
+   */
+  public String toCanonicalString () {
+    return this.toString ();
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
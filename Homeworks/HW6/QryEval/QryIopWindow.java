@@ -2,78 +2,116 @@
  *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The WINDOW/n operator for all retrieval models.  It matches when
+ *  its arguments occur, in any order, within a window of fewer than n
+ *  positions.  The location of a match is the location of the last
+ *  argument in the window.
+ *  <p>
+ *  The window is tracked with a min-heap of the arguments' current
+ *  locations and the maximum location, so each step costs O(log k)
+ *  for k arguments.
+ *  </p>
  */
-public class QryIopWindow extends QryIop {
+public class QryIopWindow extends QryIopPositional {
 
   private int distance;
 
+  /**
+   *  The arguments, ordered by their current locations.
+   */
+  private ArgHeap window = null;
+
   QryIopWindow(int distance) {
     this.distance = distance;
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
-   *  @throws IOException Error accessing the Lucene index.
+   *  Put every argument's current location in the window.
+   *  @return The maximum location, or Qry.INVALID_DOCID if an
+   *  argument has no more locations.
    */
-  protected void evaluate () throws IOException {
+  private int fillWindow () {
+
+    int locMax = Integer.MIN_VALUE;
+
+    this.window.clear ();
+
+    for (int i=0; i<this.args.size(); i++) {
+      QryIop q_i = (QryIop) this.args.get(i);
+
+      if (! q_i.locIteratorHasMatch()) {
+        return Qry.INVALID_DOCID;
+      }
 
-    //  Create an empty inverted list.  If there are no query arguments,
-    //  this is the final result.
-    
-    this.invertedList = new InvList (this.getField());
+      int loc = q_i.locIteratorGetMatch();
+      this.window.push (i, loc);
+      locMax = Math.max (locMax, loc);
+    }
+
+    return locMax;
+  }
+
+  /**
+   *  Find the matches in the document that all of the arguments'
+   *  docIterators point to.  The locations of the matches are stored
+   *  in the positions buffer.  The arguments' locIterators are consumed.
+   *  @return The number of matches.
+   */
+  protected int matchLocations () {
 
-    if (args.size () == 0) {
-      return;
+    if (this.window == null) {
+      this.window = new ArgHeap (this.args.size());
     }
 
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
-    while (this.docIteratorHasMatchAll(null)) {
-      int matchDocid = args.get(0).docIteratorGetMatch();
-      List<Integer> positions = new ArrayList<>();
+    int tf = 0;
+    int locMax = this.fillWindow ();
+
+    while (locMax != Qry.INVALID_DOCID) {
+      int locMin = this.window.peekKey ();
+
+      if (locMax-locMin<this.distance) {
+
+        //  A match.  Every argument moves to its next location.
+
+        if (tf == this.positions.length) {
+          this.positions = Arrays.copyOf (this.positions, 2 * tf);
+        }
+
+        this.positions[tf++] = locMax;
 
-      List<Integer> locations = new ArrayList<>();
-      while (true) {
         for (Qry q:this.args) {
-          if (((QryIop)q).locIteratorHasMatch()) {
-            locations.add(((QryIop)q).locIteratorGetMatch());
-          } else {
-            locations.clear();
-            break;
-          }
+          ((QryIop)q).locIteratorAdvance();
         }
-        if (locations.isEmpty()) break;
 
-        int locMin = Collections.min(locations);
-        int locMax = Collections.max(locations);
-        locations.clear();
+        locMax = this.fillWindow ();
+      } else {
 
-        if (locMax-locMin<this.distance) {
-          positions.add(locMax);
-          for (Qry q:this.args) {
-            ((QryIop)q).locIteratorAdvance();
-          }
-        } else {
-          for (Qry q:this.args) {
-            ((QryIop)q).locIteratorAdvancePast(locMin);
+        //  No match.  The arguments at the minimum location move past
+        //  it; the others stay where they are.
+
+        while ((! this.window.isEmpty ()) &&
+               (this.window.peekKey () == locMin)) {
+          int i = this.window.pop ();
+          QryIop q_i = (QryIop) this.args.get(i);
+
+          q_i.locIteratorAdvancePast(locMin);
+
+          if (! q_i.locIteratorHasMatch()) {
+            locMax = Qry.INVALID_DOCID;
+            break;
           }
-        }
-      }
 
-      if (positions.size() != 0) {
-        this.invertedList.appendPosting (matchDocid, positions);
+          int loc = q_i.locIteratorGetMatch();
+          this.window.push (i, loc);
+          locMax = Math.max (locMax, loc);
+        }
       }
-      args.get(0).docIteratorAdvancePast(matchDocid);
     }
+
+    return tf;
   }
 
 }
@@ -195,6 +195,10 @@ public class QryParser {
 
     Qry q = parseString (queryString);		// An exact parse
     q = optimizeQuery (q);			// An optimized parse
+
+    if (q != null)
+      q.planPostings (false);			// Fetch positions only if needed
+
     return q;
   }
 
@@ -270,6 +274,25 @@ public class QryParser {
       q = q.args.get (0);
     }
 
+    //  #NEAR/1 (a b) is replaced by its precomputed inverted list if
+    //  the phrase index has it.
+
+    if ((q instanceof QryIopNear) &&
+        (((QryIopNear) q).getDistance () == 1) &&
+        (q.args.size () == 2) &&
+        (q.args.get (0) instanceof QryIopTerm) &&
+        (q.args.get (1) instanceof QryIopTerm) &&
+        (Idx.getPhrases () != null)) {
+
+      String field = ((QryIop) q).getField ();
+      String term1 = ((QryIopTerm) q.args.get (0)).getTerm ();
+      String term2 = ((QryIopTerm) q.args.get (1)).getTerm ();
+
+      if (Idx.getPhrases ().contains (field, term1, term2)) {
+        q = new QryIopPhrase (term1, term2, field);
+      }
+    }
+
     return q;
 
   }
@@ -0,0 +1,390 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A query tree compiled into a flat scoring program.  The
+ *  interpreter (QrySop.getScore) walks the query tree for each
+ *  document, and each operator tests the retrieval model's class
+ *  before it scores, so every call site sees many classes and the JIT
+ *  can't inline much.  A QryPlan is built once per query (see
+ *  compile):  the operators are listed in post-order, each with an
+ *  opcode that is specific to the operator and the retrieval model,
+ *  and each SCORE operator is scored by its term weight (see
+ *  TermWeight), which has the document-independent values of the
+ *  score.  getScore runs the program with a single switch per
+ *  operator.
+ *  <p>
+ *  The query tree still finds the matching documents; the plan only
+ *  replaces getScore.  An operator matches a document if its
+ *  arguments do, as docIteratorHasMatch decides:  SCORE matches if its
+ *  inverted list does, #OR and #SUM if any argument does, and #AND,
+ *  #WAND and #WSUM if all arguments do (any argument, for Indri).
+ *  Each operator's score is computed with the same floating point
+ *  operations, in the same order, as the interpreter, so the scores
+ *  are identical.  For Indri, an operator that doesn't match gets the
+ *  interpreter's default score.
+ *  </p>
+ */
+public class QryPlan {
+
+  //  --------------- Constants and variables ---------------------
+
+  //  Opcodes.  The SCORE operators are leaves; the others combine
+  //  their arguments' registers.
+
+  private static final int SCORE = 0;
+  private static final int UNRANKED_ALL = 1;
+  private static final int UNRANKED_ANY = 2;
+  private static final int RANKED_MIN = 3;	// #AND, #WAND, #WSUM
+  private static final int RANKED_MAX = 4;	// #OR
+  private static final int INDRI_AND = 5;
+  private static final int INDRI_WAND = 6;
+  private static final int INDRI_WSUM = 7;
+  private static final int INDRI_OR = 8;
+  private static final int BM25_SUM = 9;
+  private static final int BM25_WSUM = 10;
+
+  private final int size;
+  private final int[] ops;
+
+  //  The arguments of operator i are registers args [argStart [i]]
+  //  to args [argStart [i + 1] - 1]; argWeights has a value for each.
+
+  private final int[] argStart;
+  private final int[] args;
+  private final double[] argWeights;
+
+  //  Per-operator constants.  For SCORE operators:  the inverted
+  //  list, term weight, and field lengths.  For Indri #AND and #WSUM,
+  //  c0 is the exponent or the sum of the weights.
+
+  private final QryIop[] lists;
+  private final TermWeight[] termWeights;
+  private final int[][] lengths;
+  private final double[] c0;
+
+  //  Registers.
+
+  private final double[] scores;
+  private final boolean[] matches;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compile a query.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return The plan, or null if the query has an operator that
+   *  can't be compiled for the retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static QryPlan compile (Qry q, RetrievalModel r) throws IOException {
+
+    if (! ((r instanceof RetrievalModelUnrankedBoolean) ||
+	   (r instanceof RetrievalModelRankedBoolean) ||
+	   (r instanceof RetrievalModelIndri) ||
+	   (r instanceof RetrievalModelBM25))) {
+      return null;
+    }
+
+    ArrayList<Qry> nodes = new ArrayList<Qry> ();
+
+    if (! list (q, r, nodes))
+      return null;
+
+    return new QryPlan (nodes, r);
+  }
+
+  /**
+   *  List the operators of a query in post-order.
+   *  @return false if an operator can't be compiled.
+   */
+  private static boolean list (Qry q, RetrievalModel r, ArrayList<Qry> nodes) {
+
+    if (getOp (q, r) < 0)
+      return false;
+
+    if (! (q instanceof QrySopScore)) {
+      for (Qry q_i : q.args)
+	if (! list (q_i, r, nodes))
+	  return false;
+    }
+
+    nodes.add (q);
+    return true;
+  }
+
+  /**
+   *  Get the opcode of an operator.
+   *  @return the opcode, or -1 if the operator can't be compiled.
+   */
+  private static int getOp (Qry q, RetrievalModel r) {
+
+    if (q instanceof QrySopScore)
+      return SCORE;
+
+    if (q.args.size () == 0)
+      return -1;
+
+    if ((r instanceof RetrievalModelUnrankedBoolean) ||
+	(r instanceof RetrievalModelRankedBoolean)) {
+      boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+      if (q instanceof QrySopOr) {
+	return ranked ? RANKED_MAX : UNRANKED_ANY;
+      } else if ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd) ||
+		 (q instanceof QrySopWSum)) {
+	return ranked ? RANKED_MIN : UNRANKED_ALL;
+      }
+    } else if (r instanceof RetrievalModelIndri) {
+      if (q instanceof QrySopAnd) {
+	return INDRI_AND;
+      } else if (q instanceof QrySopWAnd) {
+	return INDRI_WAND;
+      } else if (q instanceof QrySopWSum) {
+	return INDRI_WSUM;
+      } else if (q instanceof QrySopOr) {
+	return INDRI_OR;
+      }
+    } else if (r instanceof RetrievalModelBM25) {
+      if (q instanceof QrySopSum) {
+	return BM25_SUM;
+      } else if (q instanceof QrySopWSum) {
+	return BM25_WSUM;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Build the program for a list of operators in post-order.
+   */
+  private QryPlan (ArrayList<Qry> nodes, RetrievalModel r) throws IOException {
+
+    this.size = nodes.size ();
+    this.ops = new int [this.size];
+    this.argStart = new int [this.size + 1];
+    this.lists = new QryIop [this.size];
+    this.termWeights = new TermWeight [this.size];
+    this.lengths = new int [this.size][];
+    this.c0 = new double [this.size];
+    this.scores = new double [this.size];
+    this.matches = new boolean [this.size];
+
+    //  Operator i's register is i.  Arguments precede their parents.
+
+    IdentityHashMap<Qry,Integer> registers = new IdentityHashMap<Qry,Integer> ();
+    int numArgs = 0;
+
+    for (Qry q : nodes)
+      if (! (q instanceof QrySopScore))
+	numArgs += q.args.size ();
+
+    this.args = new int [numArgs];
+    this.argWeights = new double [numArgs];
+
+    int a = 0;
+
+    for (int i = 0; i < this.size; i++) {
+      Qry q = nodes.get (i);
+
+      registers.put (q, i);
+      this.ops [i] = getOp (q, r);
+      this.argStart [i] = a;
+
+      if (q instanceof QrySopScore) {
+	QryIop list = (QryIop) q.args.get (0);
+
+	this.lists [i] = list;
+	this.termWeights [i] = ((QrySopScore) q).getTermWeight ();
+	this.lengths [i] = Idx.getFieldLengths (list.getField ());
+	continue;
+      }
+
+      //  Weights are summed in argument order, as the interpreter does.
+
+      double total = 0.0;
+
+      if (q.weights != null)
+	for (double w : q.weights)
+	  total += w;
+
+      for (int j = 0; j < q.args.size (); j++, a++) {
+	this.args [a] = registers.get (q.args.get (j));
+
+	if (this.ops [i] == INDRI_WAND) {
+	  this.argWeights [a] = q.weights.get (j) / total;
+	} else if (this.ops [i] == INDRI_WSUM) {
+	  this.argWeights [a] = q.weights.get (j);
+	}
+      }
+
+      if (this.ops [i] == INDRI_AND) {
+	this.c0 [i] = 1.0 / (double) q.args.size ();
+      } else if (this.ops [i] == INDRI_WSUM) {
+	this.c0 [i] = total;
+      }
+    }
+
+    this.argStart [this.size] = a;
+  }
+
+  /**
+   *  Get the score of a document that the query matches, i.e., the
+   *  score that getScore of the query's root operator returns.
+   *  @param docid The document that the query's docIterator matched.
+   *  @return The document score.
+   */
+  public double getScore (int docid) {
+
+    double[] scores = this.scores;
+    boolean[] matches = this.matches;
+
+    for (int i = 0; i < this.size; i++) {
+      int op = this.ops [i];
+
+      if (op == SCORE) {
+	QryIop list = this.lists [i];
+	double lengthDoc = this.lengths [i][docid];
+
+	if (list.docIteratorHasMatch (null) &&
+	    (list.docIteratorGetMatch () == docid)) {
+	  matches [i] = true;
+	  scores [i] = this.termWeights [i].getScore (list.docIteratorGetMatchTf (),
+						       lengthDoc);
+	} else {
+	  matches [i] = false;
+	  scores [i] = this.termWeights [i].getDefaultScore (lengthDoc);
+	}
+
+	continue;
+      }
+
+      int start = this.argStart [i];
+      int end = this.argStart [i + 1];
+
+      switch (op) {
+      case UNRANKED_ALL:
+      case RANKED_MIN: {
+	boolean match = true;
+	double score = Double.MAX_VALUE;
+
+	for (int a = start; a < end; a++) {
+	  match &= matches [this.args [a]];
+	  score = Math.min (score, scores [this.args [a]]);
+	}
+
+	matches [i] = match;
+	scores [i] = (! match) ? 0.0 : (op == UNRANKED_ALL) ? 1.0 : score;
+	break;
+      }
+
+      case UNRANKED_ANY:
+      case RANKED_MAX: {
+	boolean match = false;
+	double score = Double.MIN_VALUE;
+
+	for (int a = start; a < end; a++) {
+	  if (matches [this.args [a]]) {
+	    match = true;
+	    score = Math.max (score, scores [this.args [a]]);
+	  }
+	}
+
+	matches [i] = match;
+	scores [i] = (! match) ? 0.0 : (op == UNRANKED_ANY) ? 1.0 : score;
+	break;
+      }
+
+      case INDRI_AND: {
+	boolean match = false;
+	double score = 1.0;
+
+	for (int a = start; a < end; a++) {
+	  match |= matches [this.args [a]];
+	  score *= scores [this.args [a]];
+	}
+
+	matches [i] = match;
+	scores [i] = Math.pow (score, this.c0 [i]);
+	break;
+      }
+
+      case INDRI_WAND: {
+	boolean match = false;
+	double score = 1.0;
+
+	for (int a = start; a < end; a++) {
+	  match |= matches [this.args [a]];
+	  score *= Math.pow (scores [this.args [a]], this.argWeights [a]);
+	}
+
+	matches [i] = match;
+	scores [i] = score;
+	break;
+      }
+
+      case INDRI_WSUM: {
+	boolean match = false;
+	double score = 0.0;
+
+	for (int a = start; a < end; a++) {
+	  match |= matches [this.args [a]];
+	  score += scores [this.args [a]] * this.argWeights [a] / this.c0 [i];
+	}
+
+	matches [i] = match;
+	scores [i] = score;
+	break;
+      }
+
+      case INDRI_OR: {
+	boolean match = false;
+	double score = 1.0;
+
+	for (int a = start; a < end; a++) {
+	  match |= matches [this.args [a]];
+	  score *= 1.0 - scores [this.args [a]];
+	}
+
+	matches [i] = match;
+	scores [i] = score;
+	break;
+      }
+
+      case BM25_SUM:
+      case BM25_WSUM: {
+	boolean match = (op == BM25_WSUM);
+	double score = 0.0;
+
+	for (int a = start; a < end; a++) {
+	  boolean match_a = matches [this.args [a]];
+
+	  if (op == BM25_SUM) {
+	    match |= match_a;
+	  } else {
+	    match &= match_a;
+	  }
+
+	  if (match_a)
+	    score += scores [this.args [a]];
+	}
+
+	matches [i] = match;
+	scores [i] = score;
+	break;
+      }
+
+      default:
+	throw new IllegalStateException ("Unknown opcode " + op);
+      }
+    }
+
+    return scores [this.size - 1];
+  }
+
+}
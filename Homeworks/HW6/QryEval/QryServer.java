@@ -0,0 +1,422 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  A long-running query server.  The index, the retrieval model, and
+ *  the caches are loaded once, and queries arrive over a TCP socket on
+ *  the loopback interface, so each query is evaluated by a warm JVM.
+ *  QryEval runs the server instead of the query file when the
+ *  server:port parameter is set.
+ *  <p>
+ *  The protocol is line-oriented.  Each request is one line:
+ *  </p>
+ *  <ul>
+ *  <li><code>qid:query</code> evaluates a query (expanded and
+ *      diversified as the parameters say) and returns its results in
+ *      the default format (server:format).
+ *  <li><code>TREC qid:query</code> returns trec_eval rows, followed by
+ *      an empty line.
+ *  <li><code>JSON qid:query</code> returns one line,
+ *      <code>{"qid":...,"results":[{"docno":...,"rank":...,"score":...},...]}</code>.
+ *  <li><code>QUIT</code> closes the connection.
+ *  <li><code>SHUTDOWN</code> stops the server.
+ *  </ul>
+ *  <p>
+ *  An error returns <code>ERROR message</code> and an empty line, or
+ *  <code>{"error":message}</code>.
+ *  </p><p>
+ *  Each connection has its own thread:  a virtual thread if the JVM
+ *  supports them (Java 21), otherwise a platform thread.  At most
+ *  server:maxConnections connections are open at once, and at most
+ *  server:maxConcurrent queries are evaluated at once; the others
+ *  wait.  Shutdown (SHUTDOWN, or SIGTERM) is graceful:  the server
+ *  stops accepting connections and requests, and the queries that are
+ *  being evaluated finish and are answered, for up to
+ *  server:shutdownSeconds.  Then the result cache is saved, if
+ *  resultCache:path is set.
+ *  </p>
+ */
+public class QryServer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final Map<String, String> params;
+  private final RetrievalModel model;
+  private final QryExpand expander;
+  private final QryDiversity diversity;
+
+  private final int port;
+  private final boolean json;
+  private final int maxConnections;
+  private final int shutdownSeconds;
+
+  /**
+   *  Permits to evaluate a query.
+   */
+  private final Semaphore queries;
+
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet ();
+  private final CountDownLatch stopped = new CountDownLatch (1);
+  private volatile boolean stopping = false;
+  private ServerSocket serverSocket;
+  private PrintStream console;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a server.
+   *  @param params Params
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @throws IllegalArgumentException Bad parameter values.
+   */
+  public QryServer (Map<String, String> params, RetrievalModel model) {
+
+    this.params = params;
+    this.model = model;
+    this.expander = new QryExpand (params);
+    this.diversity = new QryDiversity (params);
+
+    this.port = Integer.parseInt (params.get ("server:port"));
+    this.maxConnections =
+      Integer.parseInt (params.getOrDefault ("server:maxConnections", "64"));
+    this.shutdownSeconds =
+      Integer.parseInt (params.getOrDefault ("server:shutdownSeconds", "30"));
+
+    int maxConcurrent =
+      Integer.parseInt (params.getOrDefault ("server:maxConcurrent",
+			  Integer.toString (Runtime.getRuntime ().availableProcessors ())));
+    String format = params.getOrDefault ("server:format", "trec");
+
+    if ((maxConcurrent < 1) || (this.maxConnections < 1)) {
+      throw new IllegalArgumentException
+	("server:maxConcurrent and server:maxConnections must be at least 1.");
+    }
+
+    if (! (format.equals ("trec") || format.equals ("json"))) {
+      throw new IllegalArgumentException
+	("Unknown server:format " + format + ".  Use trec or json.");
+    }
+
+    this.queries = new Semaphore (maxConcurrent, true);
+    this.json = format.equals ("json");
+  }
+
+  /**
+   *  Serve queries until the server is stopped.
+   *  @throws IOException Error opening the socket.
+   */
+  public void run () throws IOException {
+
+    this.serverSocket =
+      new ServerSocket (this.port, 50, InetAddress.getLoopbackAddress ());
+
+    ExecutorService executor = newExecutor ();
+    Thread hook = new Thread (() -> {
+	this.stop ();
+	try {
+	  this.stopped.await (this.shutdownSeconds + 5, TimeUnit.SECONDS);
+	} catch (InterruptedException ex) {
+	  Thread.currentThread ().interrupt ();
+	}
+      });
+
+    Runtime.getRuntime ().addShutdownHook (hook);
+    this.console = QryEval.redirectConsole ();
+    this.console.println ("Listening on " +
+			  this.serverSocket.getLocalSocketAddress ());
+
+    try {
+      while (! this.stopping) {
+	Socket socket;
+
+	try {
+	  socket = this.serverSocket.accept ();
+	} catch (SocketException ex) {
+	  break;				// The server socket was closed
+	}
+
+	if (this.connections.size () >= this.maxConnections) {
+	  reject (socket, error ("Too many connections.", this.json));
+	  continue;
+	}
+
+	this.connections.add (socket);
+	executor.execute (() -> this.serve (socket));
+      }
+    } finally {
+      this.stop ();
+      executor.shutdown ();
+
+      try {
+	if (! executor.awaitTermination (this.shutdownSeconds, TimeUnit.SECONDS)) {
+	  for (Socket socket : this.connections)
+	    closeQuietly (socket);
+	  executor.shutdownNow ();
+	}
+      } catch (InterruptedException ex) {
+	Thread.currentThread ().interrupt ();
+      }
+
+      System.setOut (this.console);
+      this.console.println ("Server stopped");
+
+      //  On SIGTERM the JVM halts as soon as the shutdown hook returns,
+      //  i.e., when stopped counts down, so QryEval.main can't save the
+      //  result cache; it is saved here.
+
+      String resultCachePath = this.params.get ("resultCache:path");
+
+      if (resultCachePath != null) {
+	try {
+	  ResultCache.save (resultCachePath);
+	} catch (IOException ex) {
+	  this.console.println ("Can't save the result cache:  " + ex.getMessage ());
+	}
+      }
+
+      try {
+	Runtime.getRuntime ().removeShutdownHook (hook);
+      } catch (IllegalStateException ex) {
+	// The JVM is shutting down, and the hook is waiting for us.
+      }
+
+      this.stopped.countDown ();
+    }
+  }
+
+  /**
+   *  Stop accepting connections and requests.  Requests that are being
+   *  evaluated are answered, and then their connections close.
+   */
+  public void stop () {
+
+    this.stopping = true;
+
+    if (this.serverSocket != null)
+      closeQuietly (this.serverSocket);
+
+    //  Idle connections see the end of their input.
+
+    for (Socket socket : this.connections) {
+      try {
+	socket.shutdownInput ();
+      } catch (IOException ex) {
+	// The connection is already closed.
+      }
+    }
+  }
+
+  /**
+   *  Get an executor that runs each task on its own thread:  a virtual
+   *  thread if the JVM supports them, otherwise a platform thread.  The
+   *  method is found by reflection, so that the server also runs on
+   *  JVMs that don't have it.
+   */
+  private static ExecutorService newExecutor () {
+
+    try {
+      Method m = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke (null);
+    } catch (ReflectiveOperationException ex) {
+      return Executors.newCachedThreadPool ();
+    }
+  }
+
+  /**
+   *  Answer the requests of one connection.
+   *  @param socket The connection.
+   */
+  private void serve (Socket socket) {
+
+    try (BufferedReader in = new BufferedReader
+	   (new InputStreamReader (socket.getInputStream (), StandardCharsets.UTF_8));
+	 PrintWriter out = new PrintWriter
+	   (new BufferedWriter
+	    (new OutputStreamWriter (socket.getOutputStream (), StandardCharsets.UTF_8)))) {
+      String line;
+
+      while ((! this.stopping) && ((line = in.readLine ()) != null)) {
+	line = line.trim ();
+
+	if (line.length () == 0) {
+	  continue;
+	} else if (line.equals ("QUIT")) {
+	  break;
+	} else if (line.equals ("SHUTDOWN")) {
+	  this.stop ();
+	  break;
+	}
+
+	boolean useJson = this.json;
+
+	if (line.startsWith ("TREC ")) {
+	  useJson = false;
+	  line = line.substring (5).trim ();
+	} else if (line.startsWith ("JSON ")) {
+	  useJson = true;
+	  line = line.substring (5).trim ();
+	}
+
+	out.print (this.answer (line, useJson));
+	out.flush ();
+      }
+    } catch (IOException ex) {
+      if (! this.stopping)			// Else stop shut the input down
+	this.console.println ("Connection error:  " + ex.getMessage ());
+    } finally {
+      this.connections.remove (socket);
+      closeQuietly (socket);
+    }
+  }
+
+  /**
+   *  Evaluate a query line and format its results.
+   *  @param qLine A query line, qid:query.
+   *  @param json Format the results as JSON, not trec_eval rows.
+   *  @return The response.
+   */
+  private String answer (String qLine, boolean json) {
+
+    long start = System.nanoTime ();
+
+    try {
+      this.queries.acquire ();
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      return error ("The server is shutting down.", json);
+    }
+
+    QryEval.startConsoleBuffer ();
+    String response;
+
+    try {
+      StringBuilder expansion = new StringBuilder ();
+      qLine = this.expander.expand (qLine, this.model.defaultQrySopName (), expansion);
+
+      ScoreList results =
+	QryEval.evaluateQueryLine (qLine, this.params, this.model, this.diversity);
+      String qid = qLine.split (":")[0];
+
+      if (json) {
+	response = formatJson (qid, results, this.params);
+      } else {
+	response = ((results == null) ?
+		    "" : QryEval.formatResults (qid, results, this.params)) + "\n";
+      }
+    } catch (IOException | RuntimeException ex) {
+      response = error (String.valueOf (ex.getMessage ()), json);
+    } finally {
+      this.queries.release ();
+    }
+
+    this.console.print (QryEval.endConsoleBuffer () +
+			String.format ("    Time:  %.1f ms\n",
+				       (System.nanoTime () - start) / 1e6));
+    return response;
+  }
+
+  /**
+   *  Format the query results as one line of JSON.
+   *  @param qid The query id.
+   *  @param results The sorted results, or null.
+   *  @param params Params
+   *  @return The results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static String formatJson (String qid, ScoreList results,
+				    Map<String, String> params)
+    throws IOException {
+
+    int number = Integer.parseInt (params.get ("trecEvalOutputLength"));
+    int[] docids = new int [(results == null) ? 0 : Math.min (number, results.size ())];
+
+    for (int i = 0; i < docids.length; i++)
+      docids [i] = results.getDocid (i);
+
+    String[] externalIds = Idx.getExternalDocids (docids);
+    StringBuilder sb = new StringBuilder ();
+
+    sb.append ("{\"qid\":").append (quote (qid)).append (",\"results\":[");
+
+    for (int i = 0; i < docids.length; i++) {
+      if (i > 0)
+	sb.append (',');
+
+      sb.append ("{\"docno\":").append (quote (externalIds [i]))
+	.append (",\"rank\":").append (i + 1)
+	.append (",\"score\":").append (results.getDocidScore (i))
+	.append ('}');
+    }
+
+    return sb.append ("]}\n").toString ();
+  }
+
+  /**
+   *  Format an error response.
+   */
+  private static String error (String message, boolean json) {
+
+    if (json)
+      return "{\"error\":" + quote (message) + "}\n";
+    else
+      return "ERROR " + message.replace ('\n', ' ') + "\n\n";
+  }
+
+  /**
+   *  Quote a string for JSON.
+   */
+  private static String quote (String s) {
+
+    StringBuilder sb = new StringBuilder ("\"");
+
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if ((c == '"') || (c == '\\')) {
+	sb.append ('\\').append (c);
+      } else if (c < ' ') {
+	sb.append (String.format ("\\u%04x", (int) c));
+      } else {
+	sb.append (c);
+      }
+    }
+
+    return sb.append ('"').toString ();
+  }
+
+  /**
+   *  Refuse a connection.
+   *  @param socket The connection.
+   *  @param response The error response (see error).
+   */
+  private static void reject (Socket socket, String response) {
+
+    try {
+      socket.getOutputStream ().write (response.getBytes (StandardCharsets.UTF_8));
+    } catch (IOException ex) {
+      // The client is gone.
+    }
+
+    closeQuietly (socket);
+  }
+
+  /**
+   *  Close a socket, ignoring errors.
+   */
+  private static void closeQuietly (Closeable c) {
+
+    try {
+      c.close ();
+    } catch (IOException ex) {
+      // Nothing to do.
+    }
+  }
+
+}
@@ -11,9 +11,26 @@ import java.lang.IllegalArgumentException;
 public class QrySopScore extends QrySop {
 
   /**
-   *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  The argument's term weight, which has the document-independent
+   *  values of the retrieval model's score (see TermWeight).
    */
+  private TermWeight weight;
+
+  /**
+   *  The length of the argument's field in each document, indexed by
+   *  internal docid, and the shortest length.
+   */
+  private int[] fieldLengths;
+  private double minLengthDoc;
+
+  /**
+   *  The block-max cursor (see docIteratorAdvanceShallow):  The score
+   *  bound of the documents from blockStart to blockEnd.
+   */
+  private InvList.Impacts impacts = new InvList.Impacts ();
+  private int blockStart = Qry.INVALID_DOCID;
+  private int blockEnd = Qry.INVALID_DOCID;
+  private double blockMaxScore;
   
   /**
    *  Indicates whether the query has a match.
@@ -31,106 +48,128 @@ public class QrySopScore extends QrySop {
    *  @throws IOException Error accessing the Lucene index
    */
   public double getScore (RetrievalModel r) throws IOException {
-
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
-    } 
-
-    //  STUDENTS::
-    //  Add support for other retrieval models here.
-    else if (r instanceof RetrievalModelRankedBoolean) {
-      return this.getScoreRankedBoolean(r);
-    } else if (r instanceof RetrievalModelIndri) {
-      return this.getScoreIndri(r);
-    } else if (r instanceof RetrievalModelBM25) {
-      return this.getScoreBM25(r);
-    }
-    else {
-      throw new IllegalArgumentException
-        (r.getClass().getName() + " doesn't support the SCORE operator.");
+    if (! this.docIteratorHasMatchCache()) {
+      return 0.0;
     }
+    QryIop q = (QryIop) this.args.get(0);
+    return this.weight.getScore(q.docIteratorGetMatchTf(),
+                                this.fieldLengths[q.docIteratorGetMatch()]);
   }
-  
+
   /**
-   *  getScore for the Unranked retrieval model.
+   *  Get the score of a document that the argument doesn't match.
    *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal document id.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
-  public double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return 1.0;
-    }
+  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+    return this.weight.getDefaultScore(this.fieldLengths[(int) docid]);
   }
 
-  public double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      Qry q = this.args.get(0);
-      // the arg for QryScore must be a QryIop with Inveted List
-      return ((QryIop) q).docIteratorGetMatchPosting().tf;
-    }
+  /**
+   *  Get the score of one posting of the argument, i.e., the score
+   *  that getScore returns when the docIterator is on the posting's
+   *  document.  Term-at-a-time evaluation (see QryEvalTaat) reads the
+   *  argument's postings directly and uses this to score them.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The posting's internal document id.
+   *  @param tf The posting's term frequency.
+   *  @return The document score.
+   */
+  public double getPostingScore (RetrievalModel r, int docid, int tf) {
+    return this.weight.getScore(tf, this.fieldLengths[docid]);
   }
 
-  public double getScoreIndri(RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      System.out.println("ERROR! this function shouldn't be " +
-              "called if there is no match.");
-      return -1.0;
+  /**
+   *  Get the argument's term weight.
+   *  @return The term weight.
+   */
+  public TermWeight getTermWeight () {
+    return this.weight;
+  }
+
+  /**
+   *  Get an upper bound on the scores of the documents in the
+   *  argument's block of postings that contains the first document at
+   *  or after docid (see QryIop.docIteratorAdvanceShallow), and move
+   *  the block-max cursor there.  getBlockMaxScore returns the bound.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return The last docid that the bound covers.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public int docIteratorAdvanceShallow (RetrievalModel r, int docid)
+    throws IOException {
+
+    if ((docid >= this.blockStart) && (docid <= this.blockEnd))
+      return this.blockEnd;
+
+    if (! (r instanceof RetrievalModelBM25)) {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support score bounds.");
     }
+
     QryIop q = (QryIop) this.args.get(0);
-    double mu = ((RetrievalModelIndri) r).mu;
-    double lambda = ((RetrievalModelIndri) r).lambda;
 
-    double tf = q.docIteratorGetMatchPosting().tf;
-    double ctf = q.getCtf();
-    double lengthDoc = Idx.getFieldLength(q.field, q.docIteratorGetMatch());
-    double lengthCol = Idx.getSumOfFieldLengths(q.field);
+    this.blockStart = docid;
+    this.blockEnd = q.docIteratorAdvanceShallow (docid, this.impacts);
+
+    double maxScore = 0.0;
 
-    double p = ctf / lengthCol;
-    return (1.0-lambda) * (tf+mu*p) / (lengthDoc+mu) +
-            lambda * p;
+    for (int i = 0; i < this.impacts.size(); i++) {
+      maxScore = Math.max(maxScore,
+                          this.weight.getScore(this.impacts.getTf(i),
+                                               this.impacts.getLength(i)));
+    }
+
+    //  Some impacts (e.g., those of short Lucene lists) are just
+    //  placeholders, so the global bound may be tighter.
+
+    this.blockMaxScore = Math.min(maxScore, this.getMaxScore(r));
+    return this.blockEnd;
   }
 
-  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-    QryIop q = (QryIop) this.args.get(0);
-    double mu = ((RetrievalModelIndri) r).mu;
-    double lambda = ((RetrievalModelIndri) r).lambda;
-
-    double tf = 0.0;
-    double ctf = q.getCtf();
-    if (ctf < 1.0) ctf = 0.5;
-    double lengthDoc = Idx.getFieldLength(q.field, (int) docid);
-    double lengthCol = Idx.getSumOfFieldLengths(q.field);
-
-    double p = ctf / lengthCol;
-    return  (1.0-lambda) * (tf+mu*p) / (lengthDoc+mu) +
-            lambda * p;
+  /**
+   *  Get the score bound of the block-max cursor's block.
+   *  @return The score bound.
+   */
+  public double getBlockMaxScore () {
+    return this.blockMaxScore;
   }
 
-  private double getScoreBM25(RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
+  /**
+   *  Get an upper bound on the score of any document that matches the
+   *  argument.  Dynamic pruning (see QryEvalWand) uses it to skip
+   *  documents that can't be in the top k.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The score upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    if (! (r instanceof RetrievalModelBM25)) {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support score bounds.");
     }
-    QryIop q = (QryIop) this.args.get(0);
-    double k1 = ((RetrievalModelBM25)r).k1;
-    double b = ((RetrievalModelBM25)r).b;
-    double k3 = ((RetrievalModelBM25)r).k3;
 
-    double tf = q.docIteratorGetMatchPosting().tf;
+    QryIop q = (QryIop) this.args.get(0);
     double df = q.getDf();
 
-    double N = Idx.getNumDocs();
-    double lengthDoc = Idx.getFieldLength(q.field, q.docIteratorGetMatch());
-    double aveLengthDoc = (double) Idx.getSumOfFieldLengths(q.field) /
-            (double) Idx.getDocCount(q.field);
+    if (df == 0) {
+      return 0.0;
+    }
+
+    //  The score grows with tf and shrinks with the document length.
+    //  Every matching document has tf >= 1, so no document has more
+    //  than ctf - df + 1 matches, and none is shorter than the
+    //  shortest document in the field.
 
-    return Math.max(0.0, Math.log((N-df+0.5)/(df+0.5))) *
-            tf/(tf+k1*(1-b+b*lengthDoc/aveLengthDoc));
+    double tf = Math.max(1.0, q.getCtf() - df + 1);
+
+    return this.weight.getScore(tf, this.minLengthDoc);
   }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -143,6 +182,13 @@ public class QrySopScore extends QrySop {
 
     Qry q = this.args.get (0);
     q.initialize (r);
+
+    String field = ((QryIop) q).getField ();
+    this.weight = r.getTermWeight ((QryIop) q);
+    this.fieldLengths = Idx.getFieldLengths (field);
+    this.minLengthDoc = Idx.getMinFieldLength (field);
+    this.blockStart = Qry.INVALID_DOCID;
+    this.blockEnd = Qry.INVALID_DOCID;
   }
 
 }
@@ -0,0 +1,313 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A process-wide cache of query results.  The same queries are
+ *  evaluated many times:  QryExpand evaluates the original query to
+ *  get its feedback documents, experiments rerun query files with
+ *  different expansion or diversity parameters, and the query server
+ *  (see QryServer) sees repeated queries.  ResultCache keeps the top k
+ *  docids and scores of recent queries, so that QryEval.processQuery
+ *  can return them without evaluating the query.
+ *  <p>
+ *  The key is the index (its path and Lucene version), the retrieval
+ *  model and the parameters that affect its scores (see
+ *  RetrievalModel.getModelString), and the canonical string of the
+ *  parsed and optimized query (see Qry.toCanonicalString).  Queries
+ *  that parse to the same tree, e.g., that differ only in spacing,
+ *  case, or stopwords, share an entry.  An entry computed for k
+ *  documents also answers requests for fewer documents, and for more
+ *  documents if fewer than k matched.  Results that depend on timing
+ *  (score-at-a-time evaluation with a time budget) are not cached.
+ *  </p><p>
+ *  Like InvListCache, the cache is bounded by the (estimated) number
+ *  of bytes in its entries, and the least recently used entries are
+ *  evicted when the bound is exceeded.  Entries are stored in arrays,
+ *  not ScoreLists, and each get returns a new ScoreList, so callers
+ *  may modify it.  The cache can be saved to a file at the end of a
+ *  run and loaded at the start of the next (see save and load).  The
+ *  cache is thread-safe.
+ *  </p>
+ */
+public class ResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The default bound on the size of the cache, in bytes.
+   */
+  public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+  private static final int MAGIC = 0x51455243;		// "QERC"
+  private static final int VERSION = 1;
+
+  private static long maxBytes = DEFAULT_MAX_BYTES;
+  private static long bytes = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  private static final LinkedHashMap<String,Entry> entries =
+    new LinkedHashMap<String,Entry> (1024, 0.75f, true);
+
+  /**
+   *  The results of one query.
+   */
+  private static class Entry {
+
+    /**
+     *  The number of documents that were requested.  If there are
+     *  fewer docids, every matching document is in the entry.
+     */
+    final int k;
+    final int[] docids;
+    final double[] scores;
+
+    Entry (int k, int[] docids, double[] scores) {
+      this.k = k;
+      this.docids = docids;
+      this.scores = scores;
+    }
+
+    /**
+     *  Estimate the size of the entry and its key, in bytes.
+     */
+    long sizeInBytes (String key) {
+      return 96 + 2L * key.length () + 12L * this.docids.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Is the cache enabled?
+   *  @return True if the cache's bound is greater than 0.
+   */
+  public static synchronized boolean isEnabled () {
+    return maxBytes > 0;
+  }
+
+  /**
+   *  Get the cache key of a query in the current index.
+   *  @param q The parsed query.
+   *  @param r The retrieval model.
+   *  @return The key.
+   */
+  public static String getKey (Qry q, RetrievalModel r) {
+
+    IndexReader reader = Idx.INDEXREADER;
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+
+    return Idx.getIndexPath () + "@" + version + "\u0000" +
+      r.getModelString () + "\u0000" + q.toCanonicalString ();
+  }
+
+  /**
+   *  Get the results of a query, if they are cached.
+   *  @param key The query's key (see getKey).
+   *  @param k The number of documents requested.
+   *  @return The (at most k) best documents, sorted, or null.
+   */
+  public static synchronized ScoreList get (String key, int k) {
+
+    Entry entry = entries.get (key);
+
+    if ((entry == null) ||
+	((entry.docids.length < k) && (entry.docids.length == entry.k))) {
+      misses ++;
+      return null;
+    }
+
+    hits ++;
+
+    ScoreList results = new ScoreList ();
+    int n = Math.min (k, entry.docids.length);
+
+    for (int i = 0; i < n; i++)
+      results.add (entry.docids [i], entry.scores [i]);
+
+    results.setSorted ();
+    return results;
+  }
+
+  /**
+   *  Cache the results of a query.
+   *  @param key The query's key (see getKey).
+   *  @param k The number of documents that were requested.
+   *  @param results The (at most k) best documents, sorted.
+   */
+  public static void put (String key, int k, ScoreList results) {
+
+    int n = Math.min (k, results.size ());
+    int[] docids = new int [n];
+    double[] scores = new double [n];
+
+    for (int i = 0; i < n; i++) {
+      docids [i] = results.getDocid (i);
+      scores [i] = results.getDocidScore (i);
+    }
+
+    put (key, new Entry (k, docids, scores));
+  }
+
+  /**
+   *  Cache an entry, replacing an older entry for the key.
+   */
+  private static synchronized void put (String key, Entry entry) {
+
+    long size = entry.sizeInBytes (key);
+
+    if (size > maxBytes)
+      return;
+
+    Entry old = entries.put (key, entry);
+
+    if (old != null)
+      bytes -= old.sizeInBytes (key);
+
+    bytes += size;
+    evict ();
+  }
+
+  /**
+   *  Discard entries, least recently used first, until the cache is
+   *  within its bound.
+   */
+  private static void evict () {
+
+    Iterator<Map.Entry<String,Entry>> it = entries.entrySet ().iterator ();
+
+    while ((bytes > maxBytes) && it.hasNext ()) {
+      Map.Entry<String,Entry> e = it.next ();
+
+      bytes -= e.getValue ().sizeInBytes (e.getKey ());
+      it.remove ();
+      evictions ++;
+    }
+  }
+
+  /**
+   *  Load entries that were saved by an earlier run.  If the cache is
+   *  full, the least recently used entries are evicted.
+   *  @param path The cache file.  If it doesn't exist, nothing is loaded.
+   *  @throws IOException The file can't be read or isn't a cache file.
+   */
+  public static void load (String path) throws IOException {
+
+    if (! Files.exists (Paths.get (path)))
+      return;
+
+    try (DataInputStream in = new DataInputStream
+	   (new BufferedInputStream (new FileInputStream (path)))) {
+
+      if ((in.readInt () != MAGIC) || (in.readInt () != VERSION)) {
+	throw new IOException (path + " is not a result cache file.");
+      }
+
+      int count = in.readInt ();
+
+      //  Entries are saved least recently used first, so they are
+      //  loaded in the same order.
+
+      for (int i = 0; i < count; i++) {
+	byte[] key = new byte [in.readInt ()];
+	in.readFully (key);
+
+	int k = in.readInt ();
+	int n = in.readInt ();
+	int[] docids = new int [n];
+	double[] scores = new double [n];
+
+	for (int j = 0; j < n; j++) {
+	  docids [j] = in.readInt ();
+	  scores [j] = in.readDouble ();
+	}
+
+	put (new String (key, StandardCharsets.UTF_8),
+	     new Entry (k, docids, scores));
+      }
+    }
+  }
+
+  /**
+   *  Save the cache, so that a later run can load it.  The file is
+   *  written under a temporary name and then renamed, so a run that
+   *  fails doesn't leave a partial cache file.
+   *  @param path The cache file.
+   *  @throws IOException Error writing the file.
+   */
+  public static synchronized void save (String path) throws IOException {
+
+    Path file = Paths.get (path).toAbsolutePath ();
+    Path temp = file.resolveSibling (file.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream
+	   (new BufferedOutputStream (new FileOutputStream (temp.toFile ())))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeInt (entries.size ());
+
+      for (Map.Entry<String,Entry> e : entries.entrySet ()) {
+	byte[] key = e.getKey ().getBytes (StandardCharsets.UTF_8);
+	Entry entry = e.getValue ();
+
+	out.writeInt (key.length);
+	out.write (key);
+	out.writeInt (entry.k);
+	out.writeInt (entry.docids.length);
+
+	for (int j = 0; j < entry.docids.length; j++) {
+	  out.writeInt (entry.docids [j]);
+	  out.writeDouble (entry.scores [j]);
+	}
+      }
+    }
+
+    Files.move (temp, file, StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   *  Get a description of the cache's size and hit, miss, and eviction
+   *  counts.
+   *  @return A one-line description.
+   */
+  public static synchronized String getStats () {
+    return ("hits " + hits + ", misses " + misses +
+	    ", evictions " + evictions + ", queries " + entries.size () +
+	    ", " + (bytes / 1024) + " KB of " + (maxBytes / 1024) + " KB");
+  }
+
+  /**
+   *  Discard all cached results.  The statistics are not reset.
+   */
+  public static synchronized void clear () {
+    entries.clear ();
+    bytes = 0;
+  }
+
+  /**
+   *  Set the bound on the size of the cache.  0 disables the cache.
+   *  @param n The maximum number of bytes of cached results.
+   *  @throws IllegalArgumentException n is negative.
+   */
+  public static synchronized void setMaxBytes (long n) {
+
+    if (n < 0) {
+      throw new IllegalArgumentException
+	("The result cache size must be >= 0.");
+    }
+
+    maxBytes = n;
+    evict ();
+  }
+}
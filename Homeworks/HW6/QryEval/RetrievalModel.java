@@ -1,6 +1,7 @@
 /** 
  *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
  */
+import java.io.*;
 
 /**
  *  The root class in the retrieval model hierarchy.  This hierarchy
@@ -16,4 +17,29 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get a string that identifies the retrieval model and the
+   *  parameters that affect its scores, e.g., to identify its results
+   *  in a cache (see ResultCache).  Models with the same string must
+   *  produce the same results for every query.
+   *  @return The model string.
+   */
+  public String getModelString () {
+    return this.getClass().getName();
+  }
+
+  /**
+   *  Get the term weight that scores the documents that match an
+   *  inverted list (i.e., the argument of a SCORE operator).
+   *  @param q The inverted list, initialized.
+   *  @return The term weight.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException The model doesn't support the
+   *  SCORE operator.
+   */
+  public TermWeight getTermWeight (QryIop q) throws IOException {
+    throw new IllegalArgumentException
+      (this.getClass().getName() + " doesn't support the SCORE operator.");
+  }
+
 }
@@ -2,6 +2,7 @@
  *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.io.*;
 import java.util.Map;
 
 /**
@@ -11,14 +12,88 @@ import java.util.Map;
  */
 public class RetrievalModelBM25 extends RetrievalModel {
   double k1,b,k3;
+
+  /**
+   *  How #SUM and #WSUM queries are evaluated:  "none" (score every
+   *  matching document), "wand", "maxscore", or "bmw" (Block-Max
+   *  WAND).  See QryEvalWand.
+   */
+  String pruning;
+
+  /**
+   *  Score-at-a-time evaluation (see QryEvalSaat):  whether it is
+   *  used, and its budgets, in postings and milliseconds per query.
+   *  A budget of 0 is unlimited.
+   */
+  boolean saat;
+  long saatMaxPostings;
+  long saatMaxMillis;
+
   RetrievalModelBM25(Map<String, String> parameters) {
     this.k1 = Double.parseDouble(parameters.get ("BM25:k_1"));
     this.b = Double.parseDouble(parameters.get("BM25:b"));
     this.k3 = Double.parseDouble(parameters.get("BM25:k_3"));
+
+    this.pruning = parameters.getOrDefault("BM25:pruning", "none").toLowerCase();
+
+    if (! (this.pruning.equals("none") ||
+           this.pruning.equals("wand") ||
+           this.pruning.equals("maxscore") ||
+           this.pruning.equals("bmw"))) {
+      throw new IllegalArgumentException
+        ("Unknown BM25:pruning " + parameters.get("BM25:pruning"));
+    }
+
+    this.saat = Boolean.parseBoolean(parameters.getOrDefault("BM25:saat", "false"));
+    this.saatMaxPostings =
+      Long.parseLong(parameters.getOrDefault("BM25:saatMaxPostings", "0"));
+    this.saatMaxMillis =
+      Long.parseLong(parameters.getOrDefault("BM25:saatMaxMillis", "0"));
+
+    //  The impact index stores scores, so it must match k1 and b.
+
+    if (this.saat) {
+      IdxImpacts impacts = Idx.getImpacts();
+
+      if (impacts == null) {
+        throw new IllegalArgumentException
+          ("BM25:saat requires an impact index (see IdxImpacts).");
+      }
+
+      if ((impacts.getK1() != this.k1) || (impacts.getB() != this.b)) {
+        throw new IllegalArgumentException
+          ("The impact index was built with k1=" + impacts.getK1() +
+           " and b=" + impacts.getB() + ".");
+      }
+    }
   }
 
   public String defaultQrySopName () {
     return new String ("#sum");
   }
 
+  /**
+   *  Get the model string.  Dynamic pruning is exact, so it isn't part
+   *  of the string; score-at-a-time evaluation is approximate, so it is.
+   *  Results of score-at-a-time evaluation with a time budget are never
+   *  cached (see QryEval.processQuery), but the budget is part of the
+   *  string anyway.
+   *  @return The model string.
+   */
+  public String getModelString () {
+    String s = super.getModelString() + " k1=" + this.k1 + " b=" + this.b +
+      " k3=" + this.k3;
+
+    if (this.saat) {
+      s += " saat maxPostings=" + this.saatMaxPostings +
+        " maxMillis=" + this.saatMaxMillis;
+    }
+
+    return s;
+  }
+
+  public TermWeight getTermWeight (QryIop q) throws IOException {
+    return new TermWeightBM25 (this, q);
+  }
+
 }
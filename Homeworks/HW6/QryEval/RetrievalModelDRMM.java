@@ -737,7 +737,8 @@ public class RetrievalModelDRMM {
 
                 String qid = pair[0];
                 String query = pair[1];
-                ScoreList results = diversity.processQuery(qid, query, model);
+                ScoreList results = diversity.processQuery(qid, query, model,
+                        maxInputRankingsLength);
 
                 if (results != null) {
                     results.sort();
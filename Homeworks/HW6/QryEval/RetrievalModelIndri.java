@@ -2,6 +2,7 @@
  *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.io.*;
 import java.util.Map;
 
 /**
@@ -20,4 +21,12 @@ public class RetrievalModelIndri extends RetrievalModel {
     return new String ("#and");
   }
 
+  public String getModelString () {
+    return super.getModelString() + " mu=" + this.mu + " lambda=" + this.lambda;
+  }
+
+  public TermWeight getTermWeight (QryIop q) throws IOException {
+    return new TermWeightIndri (this, q);
+  }
+
 }
@@ -41,34 +41,24 @@ public class RetrievalModelLeToR extends RetrievalModel {
 
   private double[] getFeat(String query, int docId) {
     double[] feat = new double[18];
-    // f1
+    // f1 - f4 come from the attribute columns, so no stored documents
+    // are read.  A missing spamScore or rawUrl leaves the feature at 0.
     try{
-      feat[0] = (double) Float.parseFloat(Idx.getAttribute("spamScore", docId));
-    } catch (Exception e) {
-      feat[3] = Double.MIN_VALUE;
-    }
+      float spamScore = Idx.getFloatAttribute("spamScore", docId);
+      if (!Float.isNaN(spamScore)) feat[0] = spamScore;
 
-    // f2
-    try{
-      String url = Idx.getAttribute("rawUrl", docId);
-      feat[1] = url.length() - url.replace("/","").length();
-    }catch (Exception e) {
-      feat[3] = Double.MIN_VALUE;
-    }
+      // f2
+      long urlDepth = Idx.getLongAttribute("rawUrl:depth", docId);
+      if (urlDepth != IdxAttributes.MISSING) feat[1] = urlDepth;
 
-    // f3
-    try{
-      String url = Idx.getAttribute("rawUrl", docId);
-      if (url.contains("wikipedia.org")) feat[2] = 1.0;
-      else feat[2] = 0.0;
-    }catch (Exception e) {
-      feat[3] = Double.MIN_VALUE;
-    }
+      // f3
+      long wikipedia = Idx.getLongAttribute("rawUrl:wikipedia", docId);
+      if (wikipedia != IdxAttributes.MISSING) feat[2] = wikipedia;
 
-    // f4
-    try{
-      feat[3] = (double) Float.parseFloat(Idx.getAttribute("PageRank", docId));
-    }catch (Exception e) {
+      // f4
+      float pageRank = Idx.getFloatAttribute("PageRank", docId);
+      feat[3] = Float.isNaN(pageRank) ? Double.MIN_VALUE : pageRank;
+    } catch (Exception e) {
       feat[3] = Double.MIN_VALUE;
     }
 
@@ -84,7 +74,8 @@ public class RetrievalModelLeToR extends RetrievalModel {
 
     // f17 customize
     try {
-      feat[16] = Double.parseDouble(Idx.getAttribute("date", docId));
+      double date = Idx.getDoubleAttribute("date", docId);
+      feat[16] = Double.isNaN(date) ? Double.MIN_VALUE : date;
     } catch (Exception e) {
       feat[16] = Double.MIN_VALUE;
     }
@@ -396,7 +387,7 @@ public class RetrievalModelLeToR extends RetrievalModel {
 
         String qid = pair[0].trim();
         String query = pair[1].trim();
-        ScoreList results = QryEval.processQuery(query, model);
+        ScoreList results = QryEval.processQuery(query, model, outputLen);
         results.sort();
 
         uniqueQids.add(qid);
@@ -13,4 +13,8 @@ public class RetrievalModelRankedBoolean extends RetrievalModel {
     return new String ("#and");
   }
 
+  public TermWeight getTermWeight (QryIop q) {
+    return new TermWeightRankedBoolean ();
+  }
+
 }
@@ -13,4 +13,8 @@ public class RetrievalModelUnrankedBoolean extends RetrievalModel {
     return new String ("#and");
   }
 
+  public TermWeight getTermWeight (QryIop q) {
+    return new TermWeightUnrankedBoolean ();
+  }
+
 }
@@ -11,7 +11,8 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external docid is only needed to break ties when
+  //  sorting, so it is fetched the first time that it is needed.
 
   private class ScoreListEntry {
     private int docid;
@@ -21,13 +22,18 @@ public class ScoreList {
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
+    private String getExternalId() {
+      if (this.externalId == null) {
+	try {
+	  this.externalId = Idx.getExternalDocid (this.docid);
+	}
+	catch (IOException ex){
+	  ex.printStackTrace();
+	}
       }
+      return this.externalId;
     }
   }
 
@@ -36,6 +42,12 @@ public class ScoreList {
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  True if the list is known to be sorted (e.g., it was produced by
+   *  ScoreListTopK), so sort has nothing to do.
+   */
+  private boolean sorted = false;
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
@@ -43,6 +55,7 @@ public class ScoreList {
    */
   public void add(int docid, double score) {
     scores.add(new ScoreListEntry(docid, score));
+    this.sorted = false;
   }
 
   /**
@@ -70,6 +83,15 @@ public class ScoreList {
    */
   public void setDocidScore(int n, double score) {
     this.scores.get(n).score = score;
+    this.sorted = false;
+  }
+
+  /**
+   *  Record that the list is already sorted by score and external
+   *  document id.
+   */
+  public void setSorted () {
+    this.sorted = true;
   }
 
   /**
@@ -94,7 +116,7 @@ public class ScoreList {
 	if (s1.score < s2.score)
 	  return 1;
 	else
-	  return s1.externalId.compareTo(s2.externalId);
+	  return s1.getExternalId().compareTo(s2.getExternalId());
 //	  if (s1.docid > s2.docid)
 //	    return 1;
 //	  else
@@ -109,7 +131,10 @@ public class ScoreList {
    *  Sort the list by score and external document id.
    */
   public void sort () {
+    if (this.sorted)
+      return;
     Collections.sort(this.scores, new ScoreListComparator());
+    this.sorted = true;
   }
   
   /**
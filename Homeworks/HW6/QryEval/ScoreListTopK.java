@@ -0,0 +1,262 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A bounded collector of the k best document scores.  Query
+ *  evaluation produces a score for every matching document, but only
+ *  the top k are printed, so keeping (and sorting) every score wastes
+ *  time and memory.  ScoreListTopK keeps the k best scores seen so far
+ *  in a min-heap, stored in parallel arrays to avoid an object per
+ *  document, so memory is O(k) and each document costs O(log k).
+ *  <p>
+ *  Documents are ordered as ScoreList.ScoreListComparator orders them:
+ *  by score (descending), then by external document id.  External ids
+ *  are fetched only to break ties.
+ *  </p>
+ */
+public class ScoreListTopK {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int k;
+  private int size = 0;
+
+  //  The heap.  The root (entry 0) is the worst of the k best entries.
+  //  externalIds[i] is null until entry i is in a tie.
+
+  private int[] docids;
+  private double[] scores;
+  private String[] externalIds;
+
+  //  The candidate entry that is being added to the heap.
+
+  private int candidateDocid;
+  private double candidateScore;
+  private String candidateExternalId;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The number of documents to keep.
+   *  @throws IllegalArgumentException k is negative.
+   */
+  public ScoreListTopK (int k) {
+
+    if (k < 0) {
+      throw new IllegalArgumentException ("k must be >= 0.");
+    }
+
+    this.k = k;
+
+    //  k may be much larger than the number of matches (e.g.,
+    //  Integer.MAX_VALUE means "all"), so the arrays grow as needed.
+
+    int capacity = Math.min (k, 1024);
+    this.docids = new int [capacity];
+    this.scores = new double [capacity];
+    this.externalIds = new String [capacity];
+  }
+
+  /**
+   *  Offer a document score.  It is kept if it is one of the k best
+   *  seen so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  public void add (int docid, double score) {
+
+    if (this.k == 0)
+      return;
+
+    if ((this.size == this.k) && (score < this.scores [0]))
+      return;				// The common case:  Not a top k score.
+
+    this.candidateDocid = docid;
+    this.candidateScore = score;
+    this.candidateExternalId = null;
+
+    if (this.size < this.k) {
+      if (this.size == this.docids.length) {
+	int capacity = (int) Math.min (this.k, 2L * this.docids.length);
+	this.docids = Arrays.copyOf (this.docids, capacity);
+	this.scores = Arrays.copyOf (this.scores, capacity);
+	this.externalIds = Arrays.copyOf (this.externalIds, capacity);
+      }
+
+      this.siftUp (this.size++);
+    } else if (this.isWorseThanCandidate (0)) {
+      this.siftDown (0);
+    }
+  }
+
+  /**
+   *  Get the external id of the candidate, fetching it if necessary.
+   */
+  private String getCandidateExternalId () {
+
+    if (this.candidateExternalId == null)
+      this.candidateExternalId = getExternalId (this.candidateDocid);
+
+    return this.candidateExternalId;
+  }
+
+  /**
+   *  Get the external id of a document, or "" if it doesn't have one.
+   */
+  private static String getExternalId (int docid) {
+
+    String externalId = null;
+
+    try {
+      externalId = Idx.getExternalDocid (docid);
+    } catch (IOException ex) {
+      ex.printStackTrace ();
+    }
+
+    return (externalId == null) ? "" : externalId;
+  }
+
+  /**
+   *  Get the external id of a heap entry, fetching it if necessary.
+   */
+  private String getExternalIdAt (int i) {
+
+    if (this.externalIds [i] == null)
+      this.externalIds [i] = getExternalId (this.docids [i]);
+
+    return this.externalIds [i];
+  }
+
+  /**
+   *  Get the collected documents as a sorted score list.  The
+   *  collector is empty afterwards.
+   *  @return The (at most k) best documents, best first.
+   */
+  public ScoreList getScoreList () {
+
+    int n = this.size;
+    int[] sortedDocids = new int [n];
+    double[] sortedScores = new double [n];
+
+    //  Popping the heap produces the entries worst first.
+
+    for (int i = n - 1; i >= 0; i--) {
+      sortedDocids [i] = this.docids [0];
+      sortedScores [i] = this.scores [0];
+
+      this.size --;
+
+      if (this.size > 0) {
+	this.candidateDocid = this.docids [this.size];
+	this.candidateScore = this.scores [this.size];
+	this.candidateExternalId = this.externalIds [this.size];
+	this.siftDown (0);
+      }
+    }
+
+    ScoreList results = new ScoreList ();
+
+    for (int i = 0; i < n; i++)
+      results.add (sortedDocids [i], sortedScores [i]);
+
+    results.setSorted ();
+    return results;
+  }
+
+  /**
+   *  Get the score that a document must reach to be collected.
+   *  @return The worst collected score if k documents are collected,
+   *  otherwise negative infinity.
+   */
+  public double getThreshold () {
+    return ((this.k > 0) && (this.size == this.k)) ?
+      this.scores [0] : Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   *  Would heap entry i be sorted after heap entry j?
+   */
+  private boolean isWorse (int i, int j) {
+
+    if (this.scores [i] != this.scores [j])
+      return (this.scores [i] < this.scores [j]);
+
+    return (this.getExternalIdAt (i).compareTo (this.getExternalIdAt (j)) > 0);
+  }
+
+  /**
+   *  Would heap entry i be sorted after the candidate?
+   */
+  private boolean isWorseThanCandidate (int i) {
+
+    if (this.scores [i] != this.candidateScore)
+      return (this.scores [i] < this.candidateScore);
+
+    return (this.getExternalIdAt (i).compareTo (this.getCandidateExternalId ()) > 0);
+  }
+
+  /**
+   *  Put the candidate at position i, or below it, restoring the heap
+   *  order.
+   */
+  private void siftDown (int i) {
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size)
+	break;
+
+      if ((child + 1 < this.size) && this.isWorse (child + 1, child))
+	child ++;			// The worse child
+
+      if (! this.isWorseThanCandidate (child))
+	break;
+
+      this.move (child, i);
+      i = child;
+    }
+
+    this.setCandidate (i);
+  }
+
+  /**
+   *  Put the candidate at position i, or above it, restoring the heap
+   *  order.
+   */
+  private void siftUp (int i) {
+
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (this.isWorseThanCandidate (parent))
+	break;
+
+      this.move (parent, i);
+      i = parent;
+    }
+
+    this.setCandidate (i);
+  }
+
+  /**
+   *  Move heap entry from to position to.
+   */
+  private void move (int from, int to) {
+    this.docids [to] = this.docids [from];
+    this.scores [to] = this.scores [from];
+    this.externalIds [to] = this.externalIds [from];
+  }
+
+  /**
+   *  Put the candidate at position i.
+   */
+  private void setCandidate (int i) {
+    this.docids [i] = this.candidateDocid;
+    this.scores [i] = this.candidateScore;
+    this.externalIds [i] = this.candidateExternalId;
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The root class of term weights.  A term weight scores the
+ *  documents that match one inverted list (the argument of a SCORE
+ *  operator) for one retrieval model.  The retrieval model creates it
+ *  when the query is initialized (see RetrievalModel.getTermWeight),
+ *  so the values that depend only on the query and the collection
+ *  (e.g., idf) are computed once per query instead of once per
+ *  document.  Term weights are immutable.
+ *  <p>
+ *  A new retrieval model provides its own TermWeight subclass; the
+ *  query operators don't need to know about it.
+ *  </p>
+ */
+public abstract class TermWeight {
+
+  /**
+   *  Get the score of a document that matches the inverted list.
+   *  @param tf The document's term frequency.
+   *  @param lengthDoc The length of the inverted list's field in the document.
+   *  @return The document score.
+   */
+  public abstract double getScore (double tf, double lengthDoc);
+
+  /**
+   *  Get the score of a document that doesn't match the inverted
+   *  list.  Models that don't score such documents use 0.
+   *  @param lengthDoc The length of the inverted list's field in the document.
+   *  @return The document score.
+   */
+  public double getDefaultScore (double lengthDoc) {
+    return 0.0;
+  }
+
+}
@@ -0,0 +1,44 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  The term weight of the BM25 retrieval model:  the RSJ idf times
+ *  the BM25 tf weight.  The idf and the field's average length are
+ *  computed once.  The score grows with tf and shrinks with the
+ *  document length, which dynamic pruning relies on (see QryEvalWand).
+ */
+public final class TermWeightBM25 extends TermWeight {
+
+  private final double idf;
+  private final double k1;
+  private final double b;
+  private final double oneMinusB;
+  private final double aveLengthDoc;
+
+  /**
+   *  @param r The retrieval model.
+   *  @param q The inverted list, initialized.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public TermWeightBM25 (RetrievalModelBM25 r, QryIop q) throws IOException {
+
+    String field = q.getField ();
+    double N = Idx.getNumDocs ();
+    double df = q.getDf ();
+
+    this.idf = Math.max (0.0, Math.log ((N - df + 0.5) / (df + 0.5)));
+    this.k1 = r.k1;
+    this.b = r.b;
+    this.oneMinusB = 1 - r.b;
+    this.aveLengthDoc = (double) Idx.getSumOfFieldLengths (field) /
+      (double) Idx.getDocCount (field);
+  }
+
+  public double getScore (double tf, double lengthDoc) {
+    return this.idf * tf /
+      (tf + this.k1 * (this.oneMinusB + this.b * lengthDoc / this.aveLengthDoc));
+  }
+
+}
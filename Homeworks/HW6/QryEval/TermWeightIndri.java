@@ -0,0 +1,59 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  The term weight of the Indri retrieval model:  the probability of
+ *  the term in the document, with Dirichlet and Jelinek-Mercer
+ *  smoothing.  The collection probability p = ctf / lengthCol and
+ *  its products with the model parameters are computed once.
+ */
+public final class TermWeightIndri extends TermWeight {
+
+  private final double mu;
+  private final double oneMinusLambda;
+
+  //  mu * p and lambda * p for matching documents, and for the
+  //  default score (which uses ctf = 0.5 if the term doesn't occur).
+
+  private final double muP;
+  private final double lambdaP;
+  private final double defaultMuP;
+  private final double defaultLambdaP;
+
+  /**
+   *  @param r The retrieval model.
+   *  @param q The inverted list, initialized.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public TermWeightIndri (RetrievalModelIndri r, QryIop q) throws IOException {
+
+    double lengthCol = Idx.getSumOfFieldLengths (q.getField ());
+    double ctf = q.getCtf ();
+    double p = ctf / lengthCol;
+
+    this.mu = r.mu;
+    this.oneMinusLambda = 1.0 - r.lambda;
+    this.muP = r.mu * p;
+    this.lambdaP = r.lambda * p;
+
+    if (ctf < 1.0)
+      ctf = 0.5;
+
+    p = ctf / lengthCol;
+    this.defaultMuP = r.mu * p;
+    this.defaultLambdaP = r.lambda * p;
+  }
+
+  public double getScore (double tf, double lengthDoc) {
+    return this.oneMinusLambda * (tf + this.muP) / (lengthDoc + this.mu) +
+      this.lambdaP;
+  }
+
+  public double getDefaultScore (double lengthDoc) {
+    return this.oneMinusLambda * this.defaultMuP / (lengthDoc + this.mu) +
+      this.defaultLambdaP;
+  }
+
+}
@@ -0,0 +1,15 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The term weight of the ranked Boolean retrieval model:  a matching
+ *  document's score is its term frequency.
+ */
+public final class TermWeightRankedBoolean extends TermWeight {
+
+  public double getScore (double tf, double lengthDoc) {
+    return tf;
+  }
+
+}
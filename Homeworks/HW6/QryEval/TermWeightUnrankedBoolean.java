@@ -0,0 +1,15 @@
+/**
+ *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The term weight of the unranked Boolean retrieval model:  every
+ *  matching document has score 1.
+ */
+public final class TermWeightUnrankedBoolean extends TermWeight {
+
+  public double getScore (double tf, double lengthDoc) {
+    return 1.0;
+  }
+
+}